@@ -0,0 +1,80 @@
+package com.monir.rama.bench;
+
+import com.monir.rama.util.AuthFns;
+import com.monir.rama.util.Hashing;
+import com.monir.rama.util.Ids;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthFnsBench {
+
+    private final UUID uid = Ids.newId();
+    private final UUID sid = Ids.newId();
+    private final byte[] salt = new byte[16];
+    private Map<String,Object> otp;
+
+    @Setup
+    public void setup() {
+        otp = AuthFns.newOtpMap(6, Duration.ofMinutes(15));
+    }
+
+    @Benchmark
+    public UUID newId() {
+        return Ids.newId();
+    }
+
+    @Benchmark
+    public String idToText() {
+        return Ids.toText(uid);
+    }
+
+    @Benchmark
+    public Map<String,Object> buildUser() {
+        return AuthFns.buildUser(uid, "someone@example.com", "Someone", 1_700_000_000_000L);
+    }
+
+    @Benchmark
+    public Map<String,Object> buildSession() {
+        return AuthFns.buildSession(sid, uid, "iPhone", "203.0.113.5", 1_700_000_000_000L);
+    }
+
+    @Benchmark
+    public String key() {
+        return AuthFns.key("someone@example.com", "203.0.113.5");
+    }
+
+    // hashes/second at the OTP cost: factory looked up per call (the old path) vs cached per thread
+    @Benchmark
+    public byte[] pbkdf2Uncached() throws Exception {
+        PBEKeySpec spec = new PBEKeySpec("123456".toCharArray(), salt, Hashing.OTP_ITERATIONS, 256);
+        return SecretKeyFactory.getInstance(Hashing.PBKDF2_SHA256).generateSecret(spec).getEncoded();
+    }
+
+    @Benchmark
+    public byte[] pbkdf2Cached() {
+        return Hashing.pbkdf2(Hashing.PBKDF2_SHA256, "123456".toCharArray(), salt, Hashing.OTP_ITERATIONS, 32);
+    }
+
+    @Benchmark
+    public boolean checkOtp() {
+        return AuthFns.checkOtp(otp, "000000");
+    }
+
+    // same check through the hashing pool, as the topologies run it
+    @Benchmark
+    public boolean checkOtpAsync() {
+        return AuthFns.checkOtpAsync(otp, "000000").join();
+    }
+}
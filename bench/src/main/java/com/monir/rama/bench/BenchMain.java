@@ -0,0 +1,24 @@
+package com.monir.rama.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs JMH like org.openjdk.jmh.Main, but unless told otherwise it always attaches the
+// GC profiler (allocation rates) and writes JSON results to jmh-results.json so runs
+// can be diffed across releases. Any standard JMH flag still works: -rf csv, -rff, -prof ...
+public final class BenchMain {
+    private BenchMain() {}
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        ChainedOptionsBuilder opts = new OptionsBuilder().parent(cmd);
+        if (cmd.getProfilers().isEmpty()) opts.addProfiler(GCProfiler.class);
+        if (!cmd.getResultFormat().hasValue()) opts.resultFormat(ResultFormatType.JSON);
+        if (!cmd.getResult().hasValue()) opts.result("jmh-results.json");
+        new Runner(opts.build()).run();
+    }
+}
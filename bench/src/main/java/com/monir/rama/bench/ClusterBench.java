@@ -0,0 +1,68 @@
+package com.monir.rama.bench;
+
+import com.monir.rama.AuthModule;
+import com.monir.rama.util.Ids;
+import com.monir.rama.util.OtpSeal;
+import com.rpl.rama.Depot;
+import com.rpl.rama.QueryTopologyClient;
+import com.rpl.rama.test.InProcessCluster;
+import com.rpl.rama.test.LaunchConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// End-to-end latency of one acked depot append and one query against an InProcessCluster.
+// SampleTime mode reports percentiles, not just the mean.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ClusterBench {
+
+    private InProcessCluster cluster;
+    private Depot auth;
+    private QueryTopologyClient<Object> checkSession;
+    private UUID sessionId;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        OtpSeal.allowPlaintext();
+        cluster = InProcessCluster.create();
+        cluster.launchModule(new AuthModule(), new LaunchConfig(1, 1));
+        auth = cluster.clusterDepot(AuthModule.class.getName(), "*auth_events");
+        checkSession = cluster.clusterQuery(AuthModule.class.getName(), "checkSession");
+
+        sessionId = Ids.newId();
+        Map<String,Object> evt = new HashMap<>();
+        evt.put("type", "SessionRequested");
+        evt.put("sessionId", sessionId);
+        evt.put("userId", Ids.newId());
+        evt.put("device", "bench");
+        evt.put("ip", "203.0.113.5");
+        auth.append(evt);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        cluster.close();
+    }
+
+    @Benchmark
+    public Object appendLoginFailed() {
+        Map<String,Object> evt = new HashMap<>();
+        evt.put("type", "LoginFailed");
+        evt.put("principal", "bench@example.com");
+        evt.put("ip", "203.0.113.5");
+        return auth.append(evt);
+    }
+
+    @Benchmark
+    public Object queryCheckSession() {
+        return checkSession.invoke(sessionId);
+    }
+}
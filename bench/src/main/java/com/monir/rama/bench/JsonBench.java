@@ -0,0 +1,64 @@
+package com.monir.rama.bench;
+
+import com.monir.rama.util.Ids;
+import com.monir.rama.util.Json;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Request parsing and response serialization as HttpMain does them per call. The *Map and
+// writeResponse cases are the old per-request path (generic map, copied into a fresh event,
+// fresh byte[]); readFields and encodeResponse are the current one. Compare gc.alloc.rate.norm
+// (BenchMain attaches the GC profiler).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBench {
+
+    private final byte[] sessionBody = ("{\"userId\":\"" + Ids.toText(Ids.newId())
+            + "\",\"device\":\"iPhone\",\"ip\":\"203.0.113.5\"}").getBytes(StandardCharsets.UTF_8);
+    private final Map<String,Object> sessionResponse = Map.of("status", "accepted", "sessionId", Ids.newId());
+
+    @Benchmark
+    public Map<String,Object> readMap() throws Exception {
+        return Json.readMap(new ByteArrayInputStream(sessionBody));
+    }
+
+    @Benchmark
+    public Map<String,Object> readMapIntoEvent() throws Exception {
+        Map<String,Object> in = Json.readMap(new ByteArrayInputStream(sessionBody));
+        Map<String,Object> evt = new HashMap<>();
+        evt.put("type", "SessionRequested");
+        evt.put("sessionId", Ids.newId());
+        evt.put("userId", Ids.parse(String.valueOf(in.get("userId"))));
+        evt.put("device", String.valueOf(in.get("device")));
+        evt.put("ip", String.valueOf(in.get("ip")));
+        return evt;
+    }
+
+    @Benchmark
+    public Map<String,Object> readFields() throws Exception {
+        Map<String,Object> evt = Json.readFields(new ByteArrayInputStream(sessionBody), "userId", "device", "ip");
+        evt.put("type", "SessionRequested");
+        evt.put("sessionId", Ids.newId());
+        evt.put("userId", Ids.parse(String.valueOf(evt.get("userId"))));
+        return evt;
+    }
+
+    @Benchmark
+    public byte[] writeResponse() throws Exception {
+        return Json.M.writeValueAsBytes(sessionResponse);
+    }
+
+    @Benchmark
+    public int encodeResponse() throws Exception {
+        return Json.encode(sessionResponse).size();
+    }
+}
@@ -0,0 +1,288 @@
+package com.monir.rama.bench;
+
+import com.monir.rama.AuthModule;
+import com.monir.rama.HttpMain;
+import com.monir.rama.util.Json;
+import com.monir.rama.util.OtpSeal;
+import com.rpl.rama.test.InProcessCluster;
+import com.rpl.rama.test.LaunchConfig;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+// Drives mixed traffic through HttpMain's endpoints and reports per-endpoint latency
+// percentiles, throughput and error rates.
+//
+//   closed loop: --users=N virtual users, each sends its next request when the last one returns
+//   open loop:   --rps=R requests per second on a fixed schedule; latency is measured from the
+//                scheduled send time, so a stalled server is not hidden (coordinated omission)
+//
+// Without --target it launches AuthModule on an InProcessCluster and serves HttpMain on an
+// ephemeral port inside this JVM, so it runs fully offline. Flags (all --key=value):
+//   --target=http://host:8080  --mix=register:1,session:3,...  --workload=file.jsonl
+//   --mode=closed|open  --users=64  --rps=1000  --maxOutstanding=10000
+//   --duration=60  --warmup=10 (seconds)  --tasks=1 --threads=1 (embedded)  --out=summary.json
+public final class LoadGen {
+    private LoadGen() {}
+
+    static final String DEFAULT_MIX =
+            "register:2,verify:1,password:1,login-failed:10,session:5,logout:2,session-get:30";
+
+    private static final class Stats {
+        final Histogram latencyMicros = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(1), 3);
+        final LongAdder ok = new LongAdder();
+        final LongAdder shed = new LongAdder();     // 429 / 503
+        final LongAdder errors = new LongAdder();   // other non-2xx and transport failures
+    }
+
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean recording;
+    private HttpClient client;
+    private String base;
+    private Workload workload;
+
+    public static void main(String[] args) throws Exception {
+        Map<String,String> opts = parseArgs(args);
+        new LoadGen().run(opts);
+    }
+
+    private void run(Map<String,String> opts) throws Exception {
+        for (String op : Workload.OPS) stats.put(op, new Stats());
+        workload = opts.containsKey("workload")
+                ? Workload.file(Path.of(opts.get("workload")))
+                : Workload.mix(opts.getOrDefault("mix", DEFAULT_MIX));
+
+        int users = Integer.parseInt(opts.getOrDefault("users", "64"));
+        ExecutorService clientPool = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+        client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(clientPool)
+                .build();
+
+        InProcessCluster cluster = null;
+        HttpServer server = null;
+        if (opts.containsKey("target")) {
+            base = opts.get("target");
+        } else {
+            // one client ip would trip the per-ip limits; measure the service, not the limiter
+            if (System.getProperty("auth.ratelimit.enabled") == null) System.setProperty("auth.ratelimit.enabled", "false");
+            OtpSeal.allowPlaintext();
+            cluster = InProcessCluster.create();
+            cluster.launchModule(new AuthModule(), new LaunchConfig(
+                    Integer.parseInt(opts.getOrDefault("tasks", "1")),
+                    Integer.parseInt(opts.getOrDefault("threads", "1"))));
+            server = HttpMain.start(cluster, 0);
+            base = "http://localhost:" + server.getAddress().getPort();
+            System.out.println("embedded HttpMain on " + base);
+        }
+
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(opts.getOrDefault("warmup", "10")));
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(opts.getOrDefault("duration", "60")));
+        long start = System.nanoTime();
+        long recordFrom = start + warmup;
+        long end = recordFrom + duration;
+
+        Thread flipper = new Thread(() -> {
+            LockSupport.parkNanos(warmup);
+            recording = true;
+        });
+        flipper.setDaemon(true);
+        flipper.start();
+
+        try {
+            if ("open".equals(opts.getOrDefault("mode", "closed"))) {
+                runOpen(Double.parseDouble(opts.getOrDefault("rps", "1000")),
+                        Integer.parseInt(opts.getOrDefault("maxOutstanding", "10000")), start, end);
+            } else {
+                runClosed(users, end);
+            }
+            report(duration / 1e9, opts.get("out"));
+        } finally {
+            clientPool.shutdownNow();
+            if (server != null) server.stop(0);
+            if (cluster != null) cluster.close();
+        }
+    }
+
+    private void runClosed(int users, long end) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            Thread t = new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    Workload.Step step = workload.next();
+                    long t0 = System.nanoTime();
+                    try {
+                        HttpResponse<String> resp = client.send(request(step), HttpResponse.BodyHandlers.ofString());
+                        record(step, t0, resp.statusCode(), resp.body());
+                    } catch (Exception e) {
+                        record(step, t0, -1, null);
+                    }
+                }
+            }, "loadgen-user-" + i);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) t.join();
+    }
+
+    private void runOpen(double rps, int maxOutstanding, long start, long end) throws InterruptedException {
+        Semaphore outstanding = new Semaphore(maxOutstanding);
+        double periodNanos = 1e9 / rps;
+        for (long i = 0; ; i++) {
+            long intended = start + (long) (i * periodNanos);
+            if (intended >= end) break;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            Workload.Step step = workload.next();
+            if (!outstanding.tryAcquire()) {
+                if (recording) dropped.increment();
+                continue;
+            }
+            client.sendAsync(request(step), HttpResponse.BodyHandlers.ofString())
+                    .whenComplete((resp, err) -> {
+                        outstanding.release();
+                        if (err != null) record(step, intended, -1, null);
+                        else record(step, intended, resp.statusCode(), resp.body());
+                    });
+        }
+        // let in-flight requests land
+        outstanding.tryAcquire(maxOutstanding, 30, TimeUnit.SECONDS);
+    }
+
+    private HttpRequest request(Workload.Step step) throws Exception {
+        String path = path(step.op);
+        if (step.query != null) {
+            path += "?" + step.query.entrySet().stream()
+                    .map(e -> e.getKey() + "=" + URLEncoder.encode(e.getValue(), StandardCharsets.UTF_8))
+                    .collect(Collectors.joining("&"));
+        }
+        HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(base + path)).timeout(Duration.ofSeconds(30));
+        if (step.body == null) return b.GET().build();
+        return b.header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(Json.M.writeValueAsBytes(step.body)))
+                .build();
+    }
+
+    private static String path(String op) {
+        switch (op) {
+            case "register":     return "/api/register";
+            case "verify":       return "/api/verify-email";
+            case "password":     return "/api/password";
+            case "login-failed": return "/api/login-failed";
+            case "session":      return "/api/session";
+            case "logout":       return "/api/logout";
+            case "session-get":  return "/api/session/get";
+            default: throw new IllegalArgumentException(op);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void record(Workload.Step step, long startNanos, int status, String body) {
+        // harvest ids so later steps have users and sessions to work with
+        if (status == 200 && body != null && (step.op.equals("register") || step.op.equals("session"))) {
+            try {
+                Map<String,Object> m = Json.M.readValue(body, Map.class);
+                if (m.get("userId") != null) workload.userCreated(String.valueOf(m.get("userId")), String.valueOf(step.body.get("email")));
+                if (m.get("sessionId") != null) workload.sessionCreated(String.valueOf(m.get("sessionId")));
+            } catch (Exception ignored) {}
+        }
+        if (!recording) return;
+        Stats s = stats.get(step.op);
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        s.latencyMicros.recordValue(Math.min(micros, s.latencyMicros.getHighestTrackableValue()));
+        if (status >= 200 && status < 300) s.ok.increment();
+        else if (status == 429 || status == 503) s.shed.increment();
+        else s.errors.increment();
+    }
+
+    private void report(double seconds, String out) throws Exception {
+        System.out.printf("%n%-13s %9s %9s %7s %7s %9s %9s %9s %9s %9s%n",
+                "op", "count", "rps", "shed%", "err%", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        Map<String,Object> summary = new LinkedHashMap<>();
+        long total = 0;
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            Stats s = e.getValue();
+            long ok = s.ok.sum(), shed = s.shed.sum(), err = s.errors.sum(), n = ok + shed + err;
+            if (n == 0) continue;
+            total += n;
+            Histogram h = s.latencyMicros;
+            System.out.printf("%-13s %9d %9.1f %7.2f %7.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    e.getKey(), n, n / seconds, 100.0 * shed / n, 100.0 * err / n,
+                    ms(h, 50), ms(h, 90), ms(h, 99), ms(h, 99.9), h.getMaxValue() / 1000.0);
+            Map<String,Object> row = new LinkedHashMap<>();
+            row.put("count", n);
+            row.put("rps", n / seconds);
+            row.put("shed", shed);
+            row.put("errors", err);
+            Map<String,Object> pct = new LinkedHashMap<>();
+            for (double p : new double[]{50, 90, 99, 99.9}) pct.put("p" + p, ms(h, p));
+            pct.put("max", h.getMaxValue() / 1000.0);
+            row.put("latencyMs", pct);
+            summary.put(e.getKey(), row);
+        }
+        System.out.printf("%ntotal %d requests, %.1f req/s, %d dropped by the open-loop outstanding cap%n",
+                total, total / seconds, dropped.sum());
+        Map<String,Object> appenders = appenderStats();
+        System.out.println("batching appenders (/api/stats): " + appenders);
+        if (out != null) {
+            Map<String,Object> doc = new HashMap<>();
+            doc.put("seconds", seconds);
+            doc.put("totalRps", total / seconds);
+            doc.put("dropped", dropped.sum());
+            doc.put("ops", summary);
+            doc.put("appenders", appenders);
+            Files.write(Path.of(out), Json.M.writerWithDefaultPrettyPrinter().writeValueAsBytes(doc));
+        }
+    }
+
+    // meanBatchSize and queue delay of the server's batching appenders under this mix
+    private Map<String,Object> appenderStats() {
+        try {
+            HttpResponse<byte[]> r = client.send(HttpRequest.newBuilder(URI.create(base + "/api/stats"))
+                    .timeout(Duration.ofSeconds(10)).GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+            return Json.readMap(new ByteArrayInputStream(r.body()));
+        } catch (Exception e) {
+            return Map.of("error", String.valueOf(e));
+        }
+    }
+
+    private static double ms(Histogram h, double percentile) {
+        return h.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    private static Map<String,String> parseArgs(String[] args) {
+        Map<String,String> m = new HashMap<>();
+        for (String a : args) {
+            if (!a.startsWith("--")) throw new IllegalArgumentException("expected --key=value, got " + a);
+            int i = a.indexOf('=');
+            if (i < 0) m.put(a.substring(2), "true");
+            else m.put(a.substring(2, i), a.substring(i + 1));
+        }
+        return m;
+    }
+}
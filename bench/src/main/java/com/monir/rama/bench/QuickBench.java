@@ -0,0 +1,167 @@
+package com.monir.rama.bench;
+
+import com.monir.rama.util.Ids;
+import com.monir.rama.util.Json;
+import com.monir.rama.util.RateLimiter;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// The JsonBench and RateLimiterBench cases without JMH, for boxes where only the JDK and the
+// service's own dependencies are at hand. Much coarser than JMH (no forks, no blackhole beyond
+// folding results into a sink), so use it for before/after comparisons on one machine only.
+//   json:    ns/op and bytes allocated per op (ThreadMXBean), median of 5 rounds
+//   limiter: ops/us at each thread count, median of 3 rounds
+//   java -cp <classes>:<jackson jars> com.monir.rama.bench.QuickBench json|limiter [threads,...]
+public final class QuickBench {
+    private QuickBench() {}
+
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        String suite = args.length > 0 ? args[0] : "json";
+        System.out.println("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+                + ", " + Runtime.getRuntime().availableProcessors() + " cpu(s)");
+        if (suite.equals("json")) json();
+        else if (suite.equals("limiter")) limiter(args.length > 1 ? args[1] : "1,2,4,8,16");
+        else throw new IllegalArgumentException("suite is json or limiter, not " + suite);
+    }
+
+    // ---------------- json ----------------
+
+    private interface Op { long run() throws Exception; }
+
+    private static void json() throws Exception {
+        byte[] sessionBody = ("{\"userId\":\"" + Ids.toText(Ids.newId())
+                + "\",\"device\":\"iPhone\",\"ip\":\"203.0.113.5\"}").getBytes(StandardCharsets.UTF_8);
+        Map<String,Object> sessionResponse = Map.of("status", "accepted", "sessionId", Ids.newId());
+
+        Map<String, Op> cases = new java.util.LinkedHashMap<>();
+        cases.put("readMap", () -> Json.readMap(new ByteArrayInputStream(sessionBody)).size());
+        cases.put("readMapIntoEvent", () -> {
+            Map<String,Object> in = Json.readMap(new ByteArrayInputStream(sessionBody));
+            Map<String,Object> evt = new HashMap<>();
+            evt.put("type", "SessionRequested");
+            evt.put("sessionId", Ids.newId());
+            evt.put("userId", Ids.parse(String.valueOf(in.get("userId"))));
+            evt.put("device", String.valueOf(in.get("device")));
+            evt.put("ip", String.valueOf(in.get("ip")));
+            return evt.size();
+        });
+        cases.put("readFields", () -> {
+            Map<String,Object> evt = Json.readFields(new ByteArrayInputStream(sessionBody), "userId", "device", "ip");
+            evt.put("type", "SessionRequested");
+            evt.put("sessionId", Ids.newId());
+            evt.put("userId", Ids.parse(String.valueOf(evt.get("userId"))));
+            return evt.size();
+        });
+        cases.put("writeResponse", () -> Json.M.writeValueAsBytes(sessionResponse).length);
+        cases.put("encodeResponse", () -> Json.encode(sessionResponse).size());
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        int warmup = 200_000, measure = 200_000, rounds = 5;
+        System.out.printf("%-18s %10s %12s%n", "case", "ns/op", "bytes/op");
+        for (Map.Entry<String, Op> c : cases.entrySet()) {
+            Op op = c.getValue();
+            for (int i = 0; i < warmup; i++) sink += op.run();
+            double[] ns = new double[rounds], bytes = new double[rounds];
+            for (int r = 0; r < rounds; r++) {
+                long b0 = mx.getThreadAllocatedBytes(tid);
+                long t0 = System.nanoTime();
+                for (int i = 0; i < measure; i++) sink += op.run();
+                long t1 = System.nanoTime();
+                long b1 = mx.getThreadAllocatedBytes(tid);
+                ns[r] = (double) (t1 - t0) / measure;
+                bytes[r] = (double) (b1 - b0) / measure;
+            }
+            System.out.printf("%-18s %10.1f %12.1f%n", c.getKey(), median(ns), median(bytes));
+        }
+    }
+
+    // ---------------- limiter ----------------
+
+    private static final int KEYS = 10_000;
+
+    private static void limiter(String threadCounts) throws Exception {
+        RateLimiter limiter = new RateLimiter(1 << 16);
+        RateLimiter.Rule rule = new RateLimiter.Rule(1e9, RateLimiter.MAX_BURST);
+        long seed = RateLimiter.seed("/api/login|ip");
+        long hotKey = RateLimiter.key(seed, "203.0.113.5");
+        long[] keys = new long[KEYS];
+        for (int i = 0; i < KEYS; i++) keys[i] = RateLimiter.key(seed, "10.0." + (i >> 8) + "." + (i & 0xFF));
+        Map<Long, long[]> lockedBuckets = new HashMap<>();
+
+        Map<String, LongSupplier> cases = new java.util.LinkedHashMap<>();
+        cases.put("hotKey", () -> limiter.tryAcquire(hotKey, rule, System.currentTimeMillis()));
+        cases.put("spreadKeys", () -> limiter.tryAcquire(keys[ThreadLocalRandom.current().nextInt(KEYS)], rule, System.currentTimeMillis()));
+        cases.put("lockedMapHotKey", () -> locked(lockedBuckets, rule, hotKey, System.currentTimeMillis()));
+        cases.put("lockedMapSpreadKeys", () -> locked(lockedBuckets, rule, keys[ThreadLocalRandom.current().nextInt(KEYS)], System.currentTimeMillis()));
+
+        int[] threads = Arrays.stream(threadCounts.split(",")).mapToInt(Integer::parseInt).toArray();
+        System.out.printf("%-20s %8s %10s%n", "case", "threads", "ops/us");
+        for (Map.Entry<String, LongSupplier> c : cases.entrySet()) {
+            for (int t : threads) {
+                run(c.getValue(), t, 1_000); // warmup
+                double[] rates = new double[3];
+                for (int r = 0; r < rates.length; r++) rates[r] = run(c.getValue(), t, 2_000);
+                System.out.printf("%-20s %8d %10.2f%n", c.getKey(), t, median(rates));
+            }
+        }
+    }
+
+    // ops per microsecond over all threads for millis of wall time
+    private static double run(LongSupplier op, int threads, long millis) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] stopAt = new long[1];
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread w = new Thread(() -> {
+                try { start.await(); } catch (InterruptedException e) { return; }
+                long n = 0, s = 0;
+                while ((n & 1023) != 0 || System.nanoTime() < stopAt[0]) {
+                    s += op.getAsLong();
+                    n++;
+                }
+                ops.add(n);
+                sink += s;
+            });
+            w.start();
+            workers.add(w);
+        }
+        long t0 = System.nanoTime();
+        stopAt[0] = t0 + millis * 1_000_000L;
+        start.countDown();
+        for (Thread w : workers) w.join();
+        return ops.sum() / ((System.nanoTime() - t0) / 1_000.0);
+    }
+
+    // same token-bucket arithmetic behind one lock, as in RateLimiterBench
+    private static long locked(Map<Long, long[]> buckets, RateLimiter.Rule rule, long key, long now) {
+        synchronized (buckets) {
+            long[] b = buckets.computeIfAbsent(key, k -> new long[] { now, rule.burst * 1_000L });
+            long tokens = Math.min(rule.burst * 1_000L, b[1] + (long) ((now - b[0]) * rule.perSecond));
+            b[0] = now;
+            if (tokens < 1_000) { b[1] = tokens; return 1; }
+            b[1] = tokens - 1_000;
+            return 0;
+        }
+    }
+
+    private static double median(double[] v) {
+        double[] s = v.clone();
+        Arrays.sort(s);
+        return s[s.length / 2];
+    }
+}
@@ -0,0 +1,71 @@
+package com.monir.rama.bench;
+
+import com.monir.rama.util.RateLimiter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// RateLimiter.tryAcquire under contention: every thread on one key (a single abusive ip), and
+// threads spread over many keys (normal traffic, table larger than the key space touched).
+// lockedMap is the obvious alternative, a synchronized HashMap of buckets, for comparison.
+// The rule is loose enough that calls take a token rather than being refused.
+//   java -jar target/benchmarks.jar RateLimiterBench -t 32
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(16)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RateLimiterBench {
+
+    private static final int KEYS = 10_000;
+
+    private final RateLimiter limiter = new RateLimiter(1 << 16);
+    private final RateLimiter.Rule rule = new RateLimiter.Rule(1e9, RateLimiter.MAX_BURST);
+    private final long hotKey = RateLimiter.key(RateLimiter.seed("/api/login|ip"), "203.0.113.5");
+    private final long[] keys = new long[KEYS];
+
+    private final Map<Long, long[]> lockedBuckets = new HashMap<>();
+
+    @Setup
+    public void setup() {
+        long seed = RateLimiter.seed("/api/login|ip");
+        for (int i = 0; i < KEYS; i++) keys[i] = RateLimiter.key(seed, "10.0." + (i >> 8) + "." + (i & 0xFF));
+    }
+
+    @Benchmark
+    public long hotKey() {
+        return limiter.tryAcquire(hotKey, rule, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public long spreadKeys() {
+        return limiter.tryAcquire(keys[ThreadLocalRandom.current().nextInt(KEYS)], rule, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public long lockedMapHotKey() {
+        return locked(hotKey, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public long lockedMapSpreadKeys() {
+        return locked(keys[ThreadLocalRandom.current().nextInt(KEYS)], System.currentTimeMillis());
+    }
+
+    // same token-bucket arithmetic behind one lock
+    private long locked(long key, long now) {
+        synchronized (lockedBuckets) {
+            long[] b = lockedBuckets.computeIfAbsent(key, k -> new long[] { now, rule.burst * 1_000L });
+            long tokens = Math.min(rule.burst * 1_000L, b[1] + (long) ((now - b[0]) * rule.perSecond));
+            b[0] = now;
+            if (tokens < 1_000) { b[1] = tokens; return 1; }
+            b[1] = tokens - 1_000;
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.monir.rama.bench;
+
+import com.monir.rama.AuthModule;
+import com.monir.rama.util.Ids;
+import com.monir.rama.util.OtpSeal;
+import com.rpl.rama.Depot;
+import com.rpl.rama.test.InProcessCluster;
+import com.rpl.rama.test.LaunchConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Acked-append throughput as the module gets more threads, with commands routed by key
+// (Depot.hashBy, the default) or placed at random. 16 client threads keep every task busy.
+//   java -jar target/benchmarks.jar ScalingBench -p threads=1,2,4,8 -p routing=hash,random
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(16)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ScalingBench {
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"8"})
+    public int tasks;
+
+    @Param({"hash", "random"})
+    public String routing;
+
+    private InProcessCluster cluster;
+    private Depot auth;
+    private Depot reg;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // read by AuthModule.define when the module launches
+        System.setProperty("auth.depot.hashBy", String.valueOf("hash".equals(routing)));
+        OtpSeal.allowPlaintext();
+        cluster = InProcessCluster.create();
+        cluster.launchModule(new AuthModule(), new LaunchConfig(tasks, threads));
+        auth = cluster.clusterDepot(AuthModule.class.getName(), "*auth_events");
+        reg  = cluster.clusterDepot(AuthModule.class.getName(), "*registration_cmds");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        cluster.close();
+        System.clearProperty("auth.depot.hashBy");
+    }
+
+    @Benchmark
+    public Object loginFailed() {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        Map<String,Object> evt = new HashMap<>();
+        evt.put("type", "LoginFailed");
+        evt.put("principal", "user" + r.nextInt(100_000) + "@example.com");
+        evt.put("ip", "10.0." + r.nextInt(256) + "." + r.nextInt(1, 255));
+        return auth.append(evt);
+    }
+
+    @Benchmark
+    public Object sessionRequested() {
+        Map<String,Object> evt = new HashMap<>();
+        evt.put("type", "SessionRequested");
+        evt.put("sessionId", Ids.newId());
+        evt.put("userId", Ids.newId());
+        evt.put("device", "bench");
+        evt.put("ip", "203.0.113.5");
+        return auth.append(evt);
+    }
+
+    @Benchmark
+    public Object emailVerified() {
+        // unknown users: the branch does the lookup and stops, which is the routing cost we want
+        Map<String,Object> evt = new HashMap<>();
+        evt.put("type", "EmailVerified");
+        evt.put("userId", Ids.newId());
+        return reg.append(evt);
+    }
+}
@@ -0,0 +1,181 @@
+package com.monir.rama.bench;
+
+import com.monir.rama.util.Json;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// What LoadGen sends next. Steps come either from a weighted mix of operations or from a
+// JSONL file replayed in a loop, one {"op": ..., "body": {...}, "query": {...}} per line.
+// String values "${userId}", "${sessionId}", "${email}" and "${ip}" are filled from users
+// and sessions created earlier in the run.
+final class Workload {
+
+    static final List<String> OPS = List.of(
+            "register", "verify", "password", "login-failed", "session", "logout", "session-get");
+
+    static final class Step {
+        final String op;
+        final Map<String,Object> body;
+        final Map<String,String> query;
+        Step(String op, Map<String,Object> body, Map<String,String> query) {
+            this.op = op;
+            this.body = body;
+            this.query = query;
+        }
+    }
+
+    private final List<Step> script;           // file mode
+    private final AtomicLong cursor = new AtomicLong();
+    private final String[] mixOps;              // mix mode
+    private final int[] mixCumulative;
+
+    // known users and sessions; fixed-size rings so memory stays flat on long runs
+    private static final int POOL = 1 << 16;
+    private final AtomicReferenceArray<String[]> users = new AtomicReferenceArray<>(POOL);
+    private final AtomicReferenceArray<String> sessions = new AtomicReferenceArray<>(POOL);
+    private final AtomicLong userCount = new AtomicLong();
+    private final AtomicLong sessionCount = new AtomicLong();
+    private final AtomicLong emailSeq = new AtomicLong();
+
+    private Workload(List<Step> script, String[] mixOps, int[] mixCumulative) {
+        this.script = script;
+        this.mixOps = mixOps;
+        this.mixCumulative = mixCumulative;
+    }
+
+    // "register:1,session:3,session-get:20"
+    static Workload mix(String spec) {
+        Map<String,Integer> weights = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split(":");
+            if (!OPS.contains(kv[0])) throw new IllegalArgumentException("unknown op in mix: " + kv[0]);
+            weights.put(kv[0], kv.length > 1 ? Integer.parseInt(kv[1]) : 1);
+        }
+        String[] ops = weights.keySet().toArray(new String[0]);
+        int[] cumulative = new int[ops.length];
+        int total = 0;
+        for (int i = 0; i < ops.length; i++) cumulative[i] = total += weights.get(ops[i]);
+        return new Workload(null, ops, cumulative);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Workload file(Path path) throws IOException {
+        List<Step> steps = new ArrayList<>();
+        try (BufferedReader r = Files.newBufferedReader(path)) {
+            for (String line; (line = r.readLine()) != null; ) {
+                if (line.isBlank()) continue;
+                Map<String,Object> m = Json.M.readValue(line, Map.class);
+                String op = String.valueOf(m.get("op"));
+                if (!OPS.contains(op)) throw new IllegalArgumentException("unknown op in " + path + ": " + op);
+                steps.add(new Step(op, (Map<String,Object>) m.get("body"), (Map<String,String>) m.get("query")));
+            }
+        }
+        if (steps.isEmpty()) throw new IllegalArgumentException(path + " has no steps");
+        return new Workload(steps, null, null);
+    }
+
+    Step next() {
+        Step s;
+        if (script != null) {
+            s = script.get((int) (cursor.getAndIncrement() % script.size()));
+        } else {
+            int roll = ThreadLocalRandom.current().nextInt(mixCumulative[mixCumulative.length - 1]);
+            int i = 0;
+            while (roll >= mixCumulative[i]) i++;
+            s = new Step(mixOps[i], null, null);
+        }
+        return resolve(s);
+    }
+
+    // Fills a step's template (or the op's default one); ops that need a user or session
+    // fall back to creating one while the pools are still empty.
+    private Step resolve(Step s) {
+        String[] user = pickUser();
+        String sid = pickSession();
+        String op = s.op;
+        if (user == null && !op.equals("register") && !op.equals("login-failed")) op = "register";
+        if (sid == null && (op.equals("logout") || op.equals("session-get"))) op = user == null ? "register" : "session";
+
+        Map<String,Object> body = s.body != null && op.equals(s.op) ? s.body : defaultBody(op);
+        Map<String,String> query = s.query != null && op.equals(s.op) ? s.query : defaultQuery(op);
+        Map<String,String> vars = new HashMap<>();
+        vars.put("${userId}", user == null ? "" : user[0]);
+        vars.put("${email}", op.equals("register") ? newEmail() : user == null ? newEmail() : user[1]);
+        vars.put("${sessionId}", sid == null ? "" : sid);
+        vars.put("${ip}", randomIp());
+        return new Step(op, body == null ? null : fill(body, vars), query == null ? null : fillQuery(query, vars));
+    }
+
+    private static Map<String,Object> defaultBody(String op) {
+        switch (op) {
+            case "register":     return Map.of("email", "${email}", "name", "Load User");
+            case "verify":       return Map.of("userId", "${userId}");
+            case "password":     return Map.of("userId", "${userId}", "hash", "bG9hZGdlbg==", "algo", "pbkdf2-sha256",
+                                               "salt", "c2FsdA==", "params", Map.of("iterations", 1000));
+            case "login-failed": return Map.of("principal", "${email}", "ip", "${ip}");
+            case "session":      return Map.of("userId", "${userId}", "device", "loadgen", "ip", "${ip}");
+            case "logout":       return Map.of("sessionId", "${sessionId}");
+            default:             return null;
+        }
+    }
+
+    private static Map<String,String> defaultQuery(String op) {
+        return op.equals("session-get") ? Map.of("sessionId", "${sessionId}") : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String,Object> fill(Map<String,Object> template, Map<String,String> vars) {
+        Map<String,Object> out = new HashMap<>(template.size());
+        for (Map.Entry<String,Object> e : template.entrySet()) {
+            Object v = e.getValue();
+            if (v instanceof String && vars.containsKey(v)) v = vars.get(v);
+            else if (v instanceof Map) v = fill((Map<String,Object>) v, vars);
+            out.put(e.getKey(), v);
+        }
+        return out;
+    }
+
+    private static Map<String,String> fillQuery(Map<String,String> template, Map<String,String> vars) {
+        Map<String,String> out = new HashMap<>(template.size());
+        template.forEach((k, v) -> out.put(k, vars.getOrDefault(v, v)));
+        return out;
+    }
+
+    void userCreated(String userId, String email) {
+        users.set((int) (userCount.getAndIncrement() % POOL), new String[]{ userId, email });
+    }
+
+    void sessionCreated(String sessionId) {
+        sessions.set((int) (sessionCount.getAndIncrement() % POOL), sessionId);
+    }
+
+    private String[] pickUser() {
+        long n = Math.min(userCount.get(), POOL);
+        return n == 0 ? null : users.get(ThreadLocalRandom.current().nextInt((int) n));
+    }
+
+    private String pickSession() {
+        long n = Math.min(sessionCount.get(), POOL);
+        return n == 0 ? null : sessions.get(ThreadLocalRandom.current().nextInt((int) n));
+    }
+
+    private String newEmail() {
+        return "load-" + ProcessHandle.current().pid() + "-" + emailSeq.incrementAndGet() + "@example.com";
+    }
+
+    private static String randomIp() {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        return "10." + r.nextInt(256) + "." + r.nextInt(256) + "." + r.nextInt(1, 255);
+    }
+}
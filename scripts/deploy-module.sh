@@ -0,0 +1,35 @@
+#!/usr/bin/env bash
+# Launches or updates AuthModule on a Rama cluster. This is the module's entry point for
+# real clusters; HttpMain only connects to it (--auth.cluster.mode=remote).
+#
+#   scripts/deploy-module.sh launch [tasks] [threads] [workers] [replication]
+#   scripts/deploy-module.sh update
+#
+# Needs RAMA_HOME pointing at a Rama release whose rama.yaml names the conductor, and
+# AUTH_EMAIL_OTPKEY set: AuthModule refuses to deploy without it.
+set -euo pipefail
+
+ACTION=${1:-launch}
+TASKS=${2:-16}
+THREADS=${3:-4}
+WORKERS=${4:-2}
+REPLICATION=${5:-1}
+RAMA_HOME=${RAMA_HOME:?set RAMA_HOME to a Rama release directory}
+
+cd "$(dirname "$0")/.."
+mvn -B -q -Pcluster -DskipTests package
+JAR=$PWD/target/auth-service-module-jar-with-dependencies.jar
+
+case "$ACTION" in
+  launch)
+    "$RAMA_HOME/rama" deploy --action launch --jar "$JAR" --module com.monir.rama.AuthModule \
+        --tasks "$TASKS" --threads "$THREADS" --workers "$WORKERS" --replicationFactor "$REPLICATION"
+    ;;
+  update)
+    "$RAMA_HOME/rama" deploy --action update --jar "$JAR" --module com.monir.rama.AuthModule
+    ;;
+  *)
+    echo "usage: $0 launch [tasks] [threads] [workers] [replication] | update" >&2
+    exit 2
+    ;;
+esac
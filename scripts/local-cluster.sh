@@ -0,0 +1,76 @@
+#!/usr/bin/env bash
+# A multi-process Rama cluster on one Linux box, for exercising remote mode before a real
+# deployment: a dev ZooKeeper, one conductor and N supervisors, each supervisor in its own
+# copy of the release with its own local dir and port range.
+#
+#   scripts/local-cluster.sh start [supervisors]   # default 2
+#   scripts/local-cluster.sh stop
+#
+# Export AUTH_EMAIL_OTPKEY (and AUTH_METRICS_WORKERPORT if wanted) before start: the supervisors
+# read them from their environment, and AuthModule will not start without the OTP key.
+#
+# Then: scripts/deploy-module.sh launch 8 2 2
+#       AUTH_SESSION_TOKENKEYS=k1:<base64> java -jar target/auth-service-jar-with-dependencies.jar --auth.cluster.mode=remote \
+#            --auth.cluster.conductorHost=localhost --port=8080   (and again with --port=8081 ...)
+set -euo pipefail
+
+RAMA_HOME=${RAMA_HOME:?set RAMA_HOME to a Rama release directory}
+WORK=${WORK:-/tmp/auth-rama-cluster}
+ACTION=${1:-start}
+SUPERVISORS=${2:-2}
+
+node_dir() {
+  local dir=$WORK/$1
+  if [ ! -d "$dir" ]; then
+    mkdir -p "$dir"
+    cp -r "$RAMA_HOME"/. "$dir"/
+  fi
+  echo "$dir"
+}
+
+write_conf() {
+  # $1 dir, $2 extra yaml lines
+  cat > "$1/rama.yaml" <<YAML
+conductor.host: "localhost"
+zookeeper.servers: ["localhost"]
+local.dir: "$1/data"
+$2
+YAML
+}
+
+start() {
+  mkdir -p "$WORK/logs"
+  local zk; zk=$(node_dir zookeeper)
+  write_conf "$zk" ""
+  (cd "$zk" && nohup ./rama devZookeeper > "$WORK/logs/zookeeper.log" 2>&1 & echo $! > "$WORK/zookeeper.pid")
+  sleep 3
+
+  local conductor; conductor=$(node_dir conductor)
+  write_conf "$conductor" ""
+  (cd "$conductor" && nohup ./rama conductor > "$WORK/logs/conductor.log" 2>&1 & echo $! > "$WORK/conductor.pid")
+  sleep 5
+
+  for i in $(seq 1 "$SUPERVISORS"); do
+    local sup; sup=$(node_dir "supervisor-$i")
+    # disjoint worker port ranges so the supervisors can share the host
+    local lo=$((4000 + i * 100))
+    write_conf "$sup" "supervisor.port.range: [$lo, $((lo + 99))]"
+    (cd "$sup" && nohup ./rama supervisor > "$WORK/logs/supervisor-$i.log" 2>&1 & echo $! > "$WORK/supervisor-$i.pid")
+  done
+  echo "cluster starting under $WORK (logs in $WORK/logs); conductor UI on http://localhost:8888"
+}
+
+stop() {
+  for pid in "$WORK"/*.pid; do
+    [ -e "$pid" ] || continue
+    kill "$(cat "$pid")" 2>/dev/null || true
+    rm -f "$pid"
+  done
+  echo "stopped"
+}
+
+case "$ACTION" in
+  start) start ;;
+  stop)  stop ;;
+  *) echo "usage: $0 start [supervisors] | stop" >&2; exit 2 ;;
+esac
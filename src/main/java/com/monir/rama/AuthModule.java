@@ -2,58 +2,131 @@
 package com.monir.rama;
 
 import com.monir.rama.util.AuthFns;
+import com.monir.rama.util.Config;
+import com.monir.rama.util.DepotKeys;
+import com.monir.rama.util.EmailFilter;
+import com.monir.rama.util.Ids;
+import com.monir.rama.util.Metrics;
+import com.monir.rama.util.OtpSeal;
+import com.monir.rama.util.Schemas;
+import com.monir.rama.util.WorkerMetrics;
 import com.rpl.rama.*;
+import com.rpl.rama.cluster.ClusterManagerBase;
 import com.rpl.rama.module.StreamTopology;
 import com.rpl.rama.ops.Ops;
 
 import java.time.Duration;
+import java.util.UUID;
 
 public class AuthModule implements RamaModule {
 
     @Override
     public void define(Setup setup, Topologies topologies) {
-        // Depots
-        setup.declareDepot("*registration_cmds", Depot.random());
-        setup.declareDepot("*auth_events",       Depot.random());
+        // codes written to *out_email are sealed; a missing key fails the deploy, not the first mail
+        OtpSeal.requireKey("AuthModule");
+        // Login-failure windows: counts live in buckets of failBucketMillis, the last
+        // failWindowBuckets of them (current one included) make up the lockout window
+        long failBucketMillis  = Config.longVal("auth.lockout.bucketMillis", 60_000L);
+        int  failWindowBuckets = Config.intVal("auth.lockout.windowBuckets", 5);
+        long maxPerPrincipalIp = Config.longVal("auth.lockout.maxPerPrincipalIp", 5L);
+        long maxPerPrincipal   = Config.longVal("auth.lockout.maxPerPrincipal", 20L);
+        long maxPerIp          = Config.longVal("auth.lockout.maxPerIp", 100L);
+        // Sessions expire after idleTtl without a touch, and never outlive absoluteTtl
+        long sessionIdleTtl      = sessionIdleTtlMillis();
+        long sessionAbsoluteTtl  = sessionAbsoluteTtlMillis();
+        long sessionBucketMillis = Config.longVal("auth.session.expiryBucketMillis", 60_000L);
+        // Wrong codes allowed per OTP; further attempts are refused without hashing
+        int otpMaxAttempts = Config.intVal("auth.otp.maxAttempts", 5);
+        // A new password hash logs the user out everywhere
+        boolean revokeOnPasswordChange = Config.bool("auth.session.revokeOnPasswordChange", true);
+        // Commands carrying a requestId are remembered this long; repeats get the first result
+        long requestTtl          = Config.longVal("auth.idempotency.ttlMillis", 60 * 60_000L);
+        long requestBucketMillis = Config.longVal("auth.idempotency.bucketMillis", 60_000L);
+
+        // Depots. Commands are routed by the key their branch partitions on (see DepotKeys);
+        // auth.depot.hashBy=false falls back to random placement for comparisons.
+        // *out_email is only written with depotPartitionAppend, which ignores the partitioner.
+        boolean hashDepots = Config.bool("auth.depot.hashBy", true);
+        setup.declareDepot("*registration_cmds", hashDepots ? Depot.hashBy(DepotKeys.Registration.class) : Depot.random());
+        setup.declareDepot("*auth_events",       hashDepots ? Depot.hashBy(DepotKeys.Auth.class) : Depot.random());
         setup.declareDepot("*out_email",         Depot.random());
+        // bulk account migration (see UserImport); routed like registrations, by email
+        setup.declareDepot("*user_import",       hashDepots ? Depot.hashBy(DepotKeys.Registration.class) : Depot.random());
+        setup.declareTickDepot("*auth_tick",     Config.longVal("auth.sweep.tickMillis", 60_000L));
+
+        // Per-task Bloom filter over $$emailIndex so lookups of unregistered emails skip the read
+        setup.declareObject("*emailFilter", new EmailFilter(
+                Config.bool("auth.emailFilter.enabled", true),
+                Config.longVal("auth.emailFilter.expectedPerTask", 1_000_000L),
+                Double.parseDouble(Config.str("auth.emailFilter.fpp", "0.01"))));
+        int emailRebuildPage = Config.intVal("auth.emailFilter.rebuildPageSize", 50_000);
+        // /metrics of the worker JVMs, where the topology metrics are recorded on a real cluster
+        setup.declareObject("*workerMetrics", new WorkerMetrics(Config.intVal("auth.metrics.workerPort", 0)));
 
         // ---------------- Registration stream ----------------
         StreamTopology reg = topologies.stream("registration");
 
-        // PStates (declare inside topology for Rama 1.1.x)
-        reg.pstate("$$usersById",   PState.mapSchema(String.class, java.util.Map.class));
-        reg.pstate("$$emailIndex",  PState.mapSchema(String.class, String.class));
-        reg.pstate("$$otpByUser",   PState.mapSchema(String.class, java.util.Map.class));
-        reg.pstate("$$credsByUser", PState.mapSchema(String.class, java.util.Map.class));
+        // PStates (declare inside topology for Rama 1.1.x). Values are fixed-key maps so single
+        // fields can be transformed in place; values written as plain HashMaps are migrated.
+        // User and session ids are UUIDv7 (see Ids), kept binary inside the module.
+        reg.pstate("$$usersById",   PState.mapSchema(UUID.class,
+                PState.migrated(PState.fixedKeysSchema(Schemas.USER), "users-uuid-ids", Schemas::migrateUser)));
+        reg.pstate("$$emailIndex",  PState.mapSchema(String.class, UUID.class));
+        reg.pstate("$$otpByUser",   PState.mapSchema(UUID.class,
+                PState.migrated(PState.fixedKeysSchema(Schemas.OTP), "otp-fixed-keys", Schemas::migrateOtp)));
+        reg.pstate("$$credsByUser", PState.mapSchema(UUID.class,
+                PState.migrated(PState.fixedKeysSchema(Schemas.CRED), "creds-fixed-keys", Schemas::migrateCred)));
+        // requestId → first result; expiry bucket → requestIds due in it
+        reg.pstate("$$regRequests", PState.mapSchema(String.class, PState.fixedKeysSchema(Schemas.REQUEST)));
+        reg.pstate("$$regRequestExpiry", PState.mapSchema(Long.class, PState.setSchema(String.class).subindexed()));
+        // legacy userId → email of an imported account refused because the id belongs to another
+        reg.pstate("$$importCollisions", PState.mapSchema(UUID.class, String.class));
 
-        reg.source("*registration_cmds").out("*e")
+        reg.source("*registration_cmds").out("*in")
+                .each((java.util.Map in) -> Metrics.appendLag("registration", in), "*in")
+                .each((java.util.Map in) -> AuthFns.unbatch(in), "*in").out("*events")
+                .each(Ops.EXPLODE, "*events").out("*e")
                 .each(Ops.GET, "*e", "type").out("*type")
+                .each(Metrics::nowMicros).out("*t0")
+                .macro(claimRequest("$$regRequests", "$$regRequestExpiry", requestTtl, requestBucketMillis))
 
-                // RegisterRequested
+                // RegisterRequested → claim the email on its partition, then write the user, its OTP
+                // and the mail on the userId's partition, where EmailVerified and OtpAttempted read
+                // them. A retry that finds the email claimed but no user row finishes the job.
                 .ifTrue(new Expr(Ops.EQUAL, "*type", "RegisterRequested"),
                         Block
                                 .each(Ops.GET, "*e", "email").out("*emailRaw")
                                 .each((String s) -> AuthFns.lowerTrim(s), "*emailRaw").out("*emailLower")
                                 .hashPartition("*emailLower")
+                                // a write path: always the PState, never the filter (see lookupEmail)
                                 .localSelect("$$emailIndex", Path.key("*emailLower")).out("*existing")
                                 .ifTrue(new Expr(Ops.IS_NULL, "*existing"),
+                                        Block.each(() -> Ids.newId()).out("*userId")
+                                                .localTransform("$$emailIndex", Path.key("*emailLower").termVal("*userId"))
+                                                .each((EmailFilter f, String email) -> f.add(email), "*emailFilter", "*emailLower"),
+                                        Block.each(Ops.IDENTITY, "*existing").out("*userId"))
+                                .hashPartition("*userId")
+                                .localSelect("$$usersById", Path.key("*userId")).out("*userRow")
+                                .ifTrue(new Expr(Ops.IS_NULL, "*userRow"),
                                         Block
-                                                .each(() -> AuthFns.newId()).out("*userId")
                                                 .each(Ops.GET, "*e", "name").out("*name")
                                                 .each(System::currentTimeMillis).out("*now")
                                                 // build user map
-                                                .each((String id, String email, String name, Long now) -> AuthFns.buildUser(id,email,name,now),
+                                                .each((UUID id, String email, String name, Long now) -> AuthFns.buildUser(id,email,name,now),
                                                         "*userId","*emailLower","*name","*now").out("*userObj")
                                                 .localTransform("$$usersById",  Path.key("*userId").termVal("*userObj"))
-                                                .localTransform("$$emailIndex", Path.key("*emailLower").termVal("*userId"))
                                                 // OTP
-                                                .each(() -> AuthFns.newOtpMap(6, Duration.ofMinutes(15))).out("*otp")
+                                                .eachAsync(() -> AuthFns.issueOtpAsync(6, Duration.ofMinutes(15))).out("*issued")
+                                                .each(Ops.GET, "*issued", "otp").out("*otp")
+                                                .each(Ops.GET, "*issued", "code").out("*code")
                                                 .localTransform("$$otpByUser", Path.key("*userId").termVal("*otp"))
-                                                // mail message
-                                                .each((String uid, String emailRaw, java.util.Map otp) -> AuthFns.emailOtpRequested(uid,emailRaw,otp),
-                                                        "*userId","*emailRaw","*otp").out("*msg")
-                                                .depotPartitionAppend("*out_email", "*msg")
-                                )
+                                                // mail message, delivered by EmailWorker
+                                                .each((UUID uid, String emailRaw, String code, java.util.Map otp) -> AuthFns.emailOtpRequested(uid,emailRaw,code,otp),
+                                                        "*userId","*emailRaw","*code","*otp").out("*msg")
+                                                .depotPartitionAppend("*out_email", "*msg"))
+                                // already registered → hand back the existing id
+                                .macro(rememberResult("$$regRequests", "*userId"))
+                                .ackReturn("*userId")
                 )
 
                 // EmailVerified
@@ -63,11 +136,40 @@ public class AuthModule implements RamaModule {
                                 .hashPartition("*uid")
                                 .localSelect("$$usersById", Path.key("*uid")).out("*u")
                                 .ifTrue(new Expr(Ops.IS_NOT_NULL, "*u"),
-                                        Block.each((java.util.Map u) -> AuthFns.markVerified(u), "*u").out("*u2")
-                                                .localTransform("$$usersById", Path.key("*uid").termVal("*u2"))
+                                        Block.localTransform("$$usersById", Path.key("*uid").key("verified").termVal(true))
                                 )
                 )
 
+                // OtpAttempted → count the attempt before hashing; a match consumes the OTP.
+                // Missing, expired and exhausted OTPs are answered without any PBKDF2 work.
+                .ifTrue(new Expr(Ops.EQUAL, "*type", "OtpAttempted"),
+                        Block
+                                .each(Ops.GET, "*e", "userId").out("*uid")
+                                .each(Ops.GET, "*e", "otp").out("*otpPlain")
+                                .hashPartition("*uid")
+                                .localSelect("$$otpByUser", Path.key("*uid")).out("*otp")
+                                .each((java.util.Map otp, Integer max) -> AuthFns.otpGate(otp, max), "*otp", otpMaxAttempts).out("*gate")
+                                .ifTrue(new Expr(Ops.EQUAL, "*gate", "ok"),
+                                        Block
+                                                .localTransform("$$otpByUser", Path.key("*uid").key("attempts").nullToVal(0L).term(Ops.INC))
+                                                .eachAsync((java.util.Map otp, String plain) -> AuthFns.checkOtpAsync(otp, plain), "*otp", "*otpPlain").out("*ok")
+                                                // other attempts ran on this task while the hash was computed; only
+                                                // the first match consumes the OTP it was checked against
+                                                .localSelect("$$otpByUser", Path.key("*uid")).out("*otpNow")
+                                                .ifTrue("*ok",
+                                                        Block.ifTrue(new Expr((java.util.Map then, java.util.Map now) -> AuthFns.sameOtp(then, now), "*otp", "*otpNow"),
+                                                                Block.localTransform("$$otpByUser", Path.key("*uid").termVoid())
+                                                                        .each(Ops.IDENTITY, "verified").out("*otpResult"),
+                                                                Block.each(Ops.IDENTITY, "missing").out("*otpResult")),
+                                                        Block.each(Ops.IDENTITY, "invalid").out("*otpResult")),
+                                        Block
+                                                .ifTrue(new Expr(Ops.NOT_EQUAL, "*gate", "missing"),
+                                                        Block.localTransform("$$otpByUser", Path.key("*uid").termVoid()))
+                                                .each(Ops.IDENTITY, "*gate").out("*otpResult"))
+                                .macro(rememberResult("$$regRequests", "*otpResult"))
+                                .ackReturn("*otpResult")
+                )
+
                 // SetPasswordHash
                 .ifTrue(new Expr(Ops.EQUAL, "*type", "SetPasswordHash"),
                         Block
@@ -81,81 +183,461 @@ public class AuthModule implements RamaModule {
                                         "*hash","*algo","*salt","*params","*ts").out("*cred")
                                 .hashPartition("*uid")
                                 .localTransform("$$credsByUser", Path.key("*uid").termVal("*cred"))
-                );
+                                // sessions live in the auth topology; hand it a LogoutAllRequested
+                                .ifTrue(revokeOnPasswordChange,
+                                        Block.each((UUID uid) -> AuthFns.logoutAllRequested(uid), "*uid").out("*logoutAll")
+                                                .depotPartitionAppend("*auth_events", "*logoutAll"))
+                )
+
+                // every branch rejoins here, on whichever task it finished
+                .each((String type, Long t0) -> Metrics.streamEvent(Metrics.REGISTRATION_EVENTS, type, t0), "*type", "*t0");
 
         // ---------------- Auth stream ----------------
         StreamTopology auth = topologies.stream("auth");
-        auth.pstate("$$loginFailures", PState.mapSchema(String.class, Long.class));
-        auth.pstate("$$sessionsById",  PState.mapSchema(String.class, java.util.Map.class));
+        // failure key → (bucket start → count); $$loginFailureBuckets indexes keys by bucket for the sweep
+        auth.pstate("$$loginFailures", PState.mapSchema(String.class, PState.mapSchema(Long.class, Long.class).subindexed()));
+        auth.pstate("$$loginFailureBuckets", PState.mapSchema(Long.class, PState.setSchema(String.class).subindexed()));
+        // bucket → failure key#failureId already counted, so a retried record does not count twice
+        auth.pstate("$$loginFailureIds", PState.mapSchema(Long.class, PState.mapSchema(String.class, Boolean.class).subindexed()));
+        auth.pstate("$$sessionsById",  PState.mapSchema(UUID.class,
+                PState.migrated(PState.fixedKeysSchema(Schemas.SESSION), "sessions-uuid-ids", Schemas::migrateSession)));
+        // expiry bucket → sessionIds due in it (revoked sessions are filed under the current bucket)
+        auth.pstate("$$sessionExpiry", PState.mapSchema(Long.class, PState.setSchema(UUID.class).subindexed()));
+        // userId → sessionId → what the session was opened with; lets per-user work skip a cluster scan
+        auth.pstate("$$sessionsByUser", PState.mapSchema(UUID.class,
+                PState.mapSchema(UUID.class, PState.fixedKeysSchema(Schemas.SESSION_REF)).subindexed()));
+        auth.pstate("$$authRequests", PState.mapSchema(String.class, PState.fixedKeysSchema(Schemas.REQUEST)));
+        auth.pstate("$$authRequestExpiry", PState.mapSchema(Long.class, PState.setSchema(String.class).subindexed()));
 
-        auth.source("*auth_events").out("*e")
+        auth.source("*auth_events").out("*in")
+                .each((java.util.Map in) -> Metrics.appendLag("auth", in), "*in")
+                .each((java.util.Map in) -> AuthFns.unbatch(in), "*in").out("*events")
+                .each(Ops.EXPLODE, "*events").out("*e")
                 .each(Ops.GET, "*e", "type").out("*type")
+                .each(Metrics::nowMicros).out("*t0")
+                .macro(claimRequest("$$authRequests", "$$authRequestExpiry", requestTtl, requestBucketMillis))
+                // branches below may fan out (three failure counters, every session of a user);
+                // the hook at the end brings the event back to one path for its metric
+                .anchor("authEvent")
 
-                // LoginFailed → bump counter
+                // LoginFailed → bump the current bucket of the principal|ip, principal and ip counters
                 .ifTrue(new Expr(Ops.EQUAL, "*type", "LoginFailed"),
                         Block
                                 .each(Ops.GET, "*e", "principal").out("*principal")
                                 .each(Ops.GET, "*e", "ip").out("*ip")
-                                .each((String p, String ip) -> AuthFns.key(p,ip), "*principal","*ip").out("*key")
-                                .hashPartition("*key")
-                                .localSelect("$$loginFailures", Path.key("*key")).out("*cur")
-                                .each((Long c) -> AuthFns.bump(c), "*cur").out("*next")
-                                .localTransform("$$loginFailures", Path.key("*key").termVal("*next"))
+                                .each(Ops.GET, "*e", "failureId").out("*failureId")
+                                .each(Ops.GET, "*e", "failedAt").out("*failedAtIn")
+                                .macro(countFailure(failBucketMillis))
                 )
 
                 // SessionRequested → create session
                 .ifTrue(new Expr(Ops.EQUAL, "*type", "SessionRequested"),
                         Block
                                 .each(Ops.GET, "*e", "userId").out("*uid")
-                                .each(() -> AuthFns.newId()).out("*sid")
+                                // the HTTP edge mints the id so it can answer without waiting
+                                .each(Ops.GET, "*e", "sessionId").out("*sidIn")
+                                .each((UUID sid) -> AuthFns.orNewId(sid), "*sidIn").out("*sid")
                                 .each(Ops.GET, "*e", "device").out("*device")
                                 .each(Ops.GET, "*e", "ip").out("*ip")
-                                .each(System::currentTimeMillis).out("*now")
-                                .each((String sid, String uid, String dev, String ip, Long now) -> AuthFns.buildSession(sid,uid,dev,ip,now),
-                                        "*sid","*uid","*device","*ip","*now").out("*sess")
-                                .hashPartition("*sid")
-                                .localTransform("$$sessionsById", Path.key("*sid").termVal("*sess"))
+                                .macro(createSession(sessionIdleTtl, sessionAbsoluteTtl, sessionBucketMillis))
+                                // keyed requests learn the id, so a retry can be answered with it
+                                .macro(rememberResult("$$authRequests", "*sid"))
+                                .ifTrue(new Expr(Ops.IS_NOT_NULL, "*reqId"), Block.ackReturn("*sid"))
                 )
 
-                // LogoutRequested → revoke
-                .ifTrue(new Expr(Ops.EQUAL, "*type", "LogoutRequested"),
+                // SessionTouched → slide the idle deadline of a live session
+                .ifTrue(new Expr(Ops.EQUAL, "*type", "SessionTouched"),
                         Block
                                 .each(Ops.GET, "*e", "sessionId").out("*sid")
                                 .hashPartition("*sid")
+                                .each(System::currentTimeMillis).out("*now")
                                 .localSelect("$$sessionsById", Path.key("*sid")).out("*s")
-                                .ifTrue(new Expr(Ops.IS_NOT_NULL, "*s"),
-                                        Block.each((java.util.Map s) -> AuthFns.revoke(s), "*s").out("*s2")
-                                                .localTransform("$$sessionsById", Path.key("*sid").termVal("*s2"))
+                                .each((java.util.Map s, Long now) -> AuthFns.liveSession(s, now), "*s", "*now").out("*live")
+                                .ifTrue(new Expr(Ops.IS_NOT_NULL, "*live"),
+                                        Block.each((java.util.Map s, Long now, Long idle, Long abs) -> AuthFns.expiresAt(s, now, idle, abs),
+                                                        "*live", "*now", sessionIdleTtl, sessionAbsoluteTtl).out("*exp")
+                                                .each((Long exp, Long size) -> AuthFns.bucketOf(exp, size), "*exp", sessionBucketMillis).out("*expBucket")
+                                                .localTransform("$$sessionsById", Path.key("*sid").multiPath(
+                                                        Path.key("lastSeen").termVal("*now"),
+                                                        Path.key("expiresAt").termVal("*exp")))
+                                                .localTransform("$$sessionExpiry", Path.key("*expBucket").voidSetElem().termVal("*sid"))
                                 )
-                );
+                )
+
+                // LogoutRequested → revoke
+                .ifTrue(new Expr(Ops.EQUAL, "*type", "LogoutRequested"),
+                        Block
+                                .each(Ops.GET, "*e", "sessionId").out("*sid")
+                                .macro(revokeSession(sessionBucketMillis))
+                )
+
+                // LogoutAllRequested → drop the user's index entry on its partition, then revoke
+                // each session it listed; work is proportional to that user's sessions
+                .ifTrue(new Expr(Ops.EQUAL, "*type", "LogoutAllRequested"),
+                        Block
+                                .each(Ops.GET, "*e", "userId").out("*uid")
+                                .hashPartition("*uid")
+                                .localSelect("$$sessionsByUser", Path.subselect(Path.key("*uid").mapKeys())).out("*userSids")
+                                .localTransform("$$sessionsByUser", Path.key("*uid").termVoid())
+                                .each(Ops.EXPLODE, "*userSids").out("*sid")
+                                .macro(revokeSession(sessionBucketMillis))
+                )
+
+                .hook("authEvent")
+                .each((String type, Long t0) -> Metrics.streamEvent(Metrics.AUTH_EVENTS, type, t0), "*type", "*t0");
+
+        // Tick → on every partition sweep state that has aged out. Both sweeps only visit
+        // buckets that are due, never the whole PState.
+        auth.source("*auth_tick")
+                .allPartition()
+                .each(System::currentTimeMillis).out("*now")
+                .anchor("tick")
+
+                // failure buckets that fell out of the lockout window
+                .each((Long now, Long size, Integer n) -> AuthFns.windowStart(now, size, n),
+                        "*now", failBucketMillis, failWindowBuckets).out("*from")
+                .localSelect("$$loginFailureBuckets", Path.subselect(Path.sortedMapRangeTo("*from").mapKeys())).out("*oldBuckets")
+                .each(Ops.EXPLODE, "*oldBuckets").out("*oldBucket")
+                .anchor("failureBucket")
+                .localSelect("$$loginFailureBuckets", Path.key("*oldBucket").all()).out("*fkey")
+                .localTransform("$$loginFailures", Path.key("*fkey").key("*oldBucket").termVoid())
+                .localSelect("$$loginFailures", Path.key("*fkey").view(Ops.SIZE)).out("*left")
+                .ifTrue(new Expr((Number n) -> AuthFns.isZero(n), "*left"),
+                        Block.localTransform("$$loginFailures", Path.key("*fkey").termVoid()))
+                .hook("failureBucket")
+                .localTransform("$$loginFailureBuckets", Path.key("*oldBucket").termVoid())
+                .localTransform("$$loginFailureIds", Path.key("*oldBucket").termVoid())
+
+                // sessions whose expiry bucket has fully passed; touched sessions were re-filed
+                // under a later bucket, so anything still live here is skipped
+                .hook("tick")
+                .each((Long now, Long size) -> AuthFns.bucketOf(now, size), "*now", sessionBucketMillis).out("*curBucket")
+                .localSelect("$$sessionExpiry", Path.subselect(Path.sortedMapRangeTo("*curBucket").mapKeys())).out("*dueBuckets")
+                .each(Ops.EXPLODE, "*dueBuckets").out("*dueBucket")
+                .anchor("sessionBucket")
+                .localSelect("$$sessionExpiry", Path.key("*dueBucket").all()).out("*sid")
+                .localSelect("$$sessionsById", Path.key("*sid")).out("*s")
+                .ifTrue(new Expr((java.util.Map s, Long now) -> AuthFns.isSweepable(s, now), "*s", "*now"),
+                        Block.localTransform("$$sessionsById", Path.key("*sid").termVoid())
+                                .each(Ops.GET, "*s", "userId").out("*sUid")
+                                .macro(unindexSession("*sUid", "*sid")))
+                .hook("sessionBucket")
+                .localTransform("$$sessionExpiry", Path.key("*dueBucket").termVoid())
+
+                // remembered requests past their TTL
+                .hook("tick")
+                .macro(sweepRequests("$$authRequests", "$$authRequestExpiry", requestBucketMillis));
+
+        // Imported accounts: written like a registration, with the legacy credential, but no OTP
+        // and no mail. Emails already present are skipped, so re-sending a batch is harmless.
+        // The user and credential go in first, on the userId's partition, and only then the email
+        // index, so an indexed email always resolves to a user. A legacy userId that already
+        // holds an account for another email is recorded in $$importCollisions and not written.
+        reg.source("*user_import").out("*in")
+                .each((java.util.Map in) -> Metrics.appendLag("import", in), "*in")
+                .each((java.util.Map in) -> AuthFns.unbatch(in), "*in").out("*events")
+                .each(Ops.EXPLODE, "*events").out("*e")
+                .each(Metrics::nowMicros).out("*t0")
+                .each(Ops.GET, "*e", "email").out("*emailRaw")
+                .each((String s) -> AuthFns.lowerTrim(s), "*emailRaw").out("*emailLower")
+                .hashPartition("*emailLower")
+                .localSelect("$$emailIndex", Path.key("*emailLower")).out("*existing")
+                .ifTrue(new Expr(Ops.IS_NULL, "*existing"),
+                        Block
+                                // UserImport mints missing ids, so a retried record writes the same row
+                                .each(Ops.GET, "*e", "userId").out("*userIdIn")
+                                .each((UUID id) -> AuthFns.orNewId(id), "*userIdIn").out("*userId")
+                                .each((java.util.Map e, UUID id, String email) -> AuthFns.importedUser(e, id, email),
+                                        "*e", "*userId", "*emailLower").out("*userObj")
+                                .each((java.util.Map e) -> AuthFns.importedCred(e), "*e").out("*cred")
+                                .hashPartition("*userId")
+                                .localSelect("$$usersById", Path.key("*userId")).out("*prior")
+                                .ifTrue(new Expr((java.util.Map prior, String email) -> AuthFns.importCollides(prior, email), "*prior", "*emailLower"),
+                                        Block.localTransform("$$importCollisions", Path.key("*userId").termVal("*emailLower")),
+                                        Block.localTransform("$$usersById", Path.key("*userId").termVal("*userObj"))
+                                                .ifTrue(new Expr(Ops.IS_NOT_NULL, "*cred"),
+                                                        Block.localTransform("$$credsByUser", Path.key("*userId").termVal("*cred")))
+                                                .hashPartition("*emailLower")
+                                                // the same email twice in flight: the first to get here keeps it
+                                                .localSelect("$$emailIndex", Path.key("*emailLower")).out("*claimed")
+                                                .ifTrue(new Expr(Ops.IS_NULL, "*claimed"),
+                                                        Block.localTransform("$$emailIndex", Path.key("*emailLower").termVal("*userId"))
+                                                                .each((EmailFilter f, String email) -> f.add(email), "*emailFilter", "*emailLower")))))
+                .each((Long t0) -> Metrics.streamEvent(Metrics.REGISTRATION_EVENTS, "UserImported", t0), "*t0");
+
+        reg.source("*auth_tick")
+                .allPartition()
+                .each(System::currentTimeMillis).out("*now")
+                .anchor("regTick")
+                // after the task starts, each tick adds one page of $$emailIndex to its email filter
+                // until a short page marks it built, so no single event reads the whole partition
+                .each((EmailFilter f) -> f.rebuildCursor(), "*emailFilter").out("*rebuildFrom")
+                .ifTrue(new Expr(Ops.IS_NOT_NULL, "*rebuildFrom"),
+                        Block.localSelect("$$emailIndex",
+                                        Path.subselect(Path.sortedMapRangeFrom("*rebuildFrom",
+                                                SortedRangeFromOptions.maxAmt(emailRebuildPage).excludeStart()).mapKeys())).out("*emailPage")
+                                .each((EmailFilter f, java.util.List page, Integer size) -> f.addPage(page, size),
+                                        "*emailFilter", "*emailPage", emailRebuildPage))
+                .hook("regTick")
+                .macro(sweepRequests("$$regRequests", "$$regRequestExpiry", requestBucketMillis));
 
         // ---------------- Queries ----------------
 
         topologies.query("canRegister", "*emailLower").out("*ok")
                 .hashPartition("*emailLower")
-                .localSelect("$$emailIndex", Path.key("*emailLower")).out("*existing")
+                .macro(lookupEmail())
                 .each(Ops.IS_NULL, "*existing").out("*ok")
                 .originPartition();
 
         topologies.query("getUserIdByEmail", "*emailLower").out("*userId")
                 .hashPartition("*emailLower")
-                .localSelect("$$emailIndex", Path.key("*emailLower")).out("*userId")
+                .macro(lookupEmail())
+                .each(Ops.IDENTITY, "*existing").out("*userId")
                 .originPartition();
 
-        topologies.query("getCredForUser", "*userId").out("*cred")
+        // the stored credential stays on its partition: PBKDF2 runs on the hashing pool there and
+        // only the verdict goes back ("ok", "invalid" or "unsupported")
+        topologies.query("checkPassword", "*userId", "*password").out("*verdict")
                 .hashPartition("*userId")
                 .localSelect("$$credsByUser", Path.key("*userId")).out("*cred")
+                .eachAsync((java.util.Map cred, String plain) -> AuthFns.passwordVerdictAsync(cred, plain), "*cred", "*password").out("*verdict")
                 .originPartition();
 
-        topologies.query("checkOtp", "*userId", "*otpPlain").out("*ok")
+        // locked out when any of the principal|ip, principal or ip windows is over its limit
+        topologies.query("isLockedOut", "*principal", "*ip").out("*locked")
+                .each((String p, String ip) -> AuthFns.failureKeys(p,ip), "*principal","*ip").out("*fkeys")
+                .each(Ops.EXPLODE, "*fkeys").out("*fkey")
+                .hashPartition("*fkey")
+                .each(System::currentTimeMillis).out("*now")
+                .each((Long now, Long size, Integer n) -> AuthFns.windowStart(now, size, n),
+                        "*now", failBucketMillis, failWindowBuckets).out("*from")
+                .localSelect("$$loginFailures", Path.key("*fkey").sortedMapRangeFrom("*from")).out("*window")
+                .each((java.util.Map w) -> AuthFns.sumCounts(w), "*window").out("*count")
+                .each((String k, Long c, Long pi, Long p, Long ip) -> AuthFns.overLimit(k, c, pi, p, ip),
+                        "*fkey","*count", maxPerPrincipalIp, maxPerPrincipal, maxPerIp).out("*over")
+                .originPartition()
+                .agg(Agg.or("*over")).out("*locked");
+
+        // Batch lookups: one query fans out to the owning partitions and gathers a map of
+        // id → value. Unknown, expired and revoked ids are left out of the result.
+        // Batch lookups take one hop per partition, not one per id: every task looks up all the
+        // ids locally, only an id's owner finds it, and Agg.map combines each task's hits before
+        // they go back to the origin.
+        topologies.query("checkSessionsBatch", "*sessionIds").out("*sessions")
+                .allPartition()
+                .each(System::currentTimeMillis).out("*now")
+                .each(Ops.EXPLODE, "*sessionIds").out("*sid")
+                .localSelect("$$sessionsById", Path.key("*sid")).out("*stored")
+                .each((java.util.Map s, Long now) -> AuthFns.liveSession(s, now), "*stored", "*now").out("*sess")
+                .keepTrue(new Expr(Ops.IS_NOT_NULL, "*sess"))
+                .originPartition()
+                .agg(Agg.map("*sid", "*sess")).out("*sessions");
+
+        // every refused import, legacy userId → email; expected to stay small
+        topologies.query("getImportCollisions").out("*collisions")
+                .allPartition()
+                .localSelect("$$importCollisions", Path.all()).out("*entry")
+                .each(Ops.EXPAND, "*entry").out("*uid", "*email")
+                .originPartition()
+                .agg(Agg.map("*uid", "*email")).out("*collisions");
+
+        topologies.query("getUsersBatch", "*userIds").out("*users")
+                .allPartition()
+                .each(Ops.EXPLODE, "*userIds").out("*uid")
+                .localSelect("$$usersById", Path.key("*uid")).out("*u")
+                .keepTrue(new Expr(Ops.IS_NOT_NULL, "*u"))
+                .originPartition()
+                .agg(Agg.map("*uid", "*u")).out("*users");
+
+        // a user's live sessions, id → session; one hop per session the user has
+        topologies.query("listSessions", "*userId").out("*sessions")
                 .hashPartition("*userId")
-                .localSelect("$$otpByUser", Path.key("*userId")).out("*otp")
-                .each((java.util.Map otp, String plain) -> AuthFns.checkOtp(otp, plain), "*otp","*otpPlain").out("*ok")
-                .originPartition();
+                .localSelect("$$sessionsByUser", Path.key("*userId").mapKeys()).out("*sid")
+                .hashPartition("*sid")
+                .localSelect("$$sessionsById", Path.key("*sid")).out("*stored")
+                .each(System::currentTimeMillis).out("*now")
+                .each((java.util.Map s, Long now) -> AuthFns.liveSession(s, now), "*stored", "*now").out("*sess")
+                .keepTrue(new Expr(Ops.IS_NOT_NULL, "*sess"))
+                .originPartition()
+                .agg(Agg.map("*sid", "*sess")).out("*sessions");
+
+        // the module's task count, which is also the partition count of each of its depots
+        topologies.query("taskCount").out("*count")
+                .allPartition()
+                .originPartition()
+                .agg(Agg.count()).out("*count");
 
+        // expired and revoked sessions read as absent
         topologies.query("checkSession", "*sessionId").out("*sess")
                 .hashPartition("*sessionId")
-                .localSelect("$$sessionsById", Path.key("*sessionId")).out("*sess")
+                .localSelect("$$sessionsById", Path.key("*sessionId")).out("*stored")
+                .each(System::currentTimeMillis).out("*now")
+                .each((java.util.Map s, Long now) -> AuthFns.liveSession(s, now), "*stored", "*now").out("*sess")
                 .originPartition();
     }
+
+    // Session lifetimes, shared with the HTTP tier so tokens and sessions agree on them
+    public static long sessionIdleTtlMillis() {
+        return Config.longVal("auth.session.idleTtlMillis", 30 * 60_000L);
+    }
+
+    public static long sessionAbsoluteTtlMillis() {
+        return Config.longVal("auth.session.absoluteTtlMillis", 24 * 60 * 60_000L);
+    }
+
+    // Task count of the launched module, read from the cluster; clients that tail depot
+    // partitions need it and must not guess.
+    public static int taskCount(ClusterManagerBase cluster) {
+        Object n;
+        try {
+            n = cluster.clusterQuery(AuthModule.class.getName(), "taskCount").invoke();
+        } catch (Exception e) {
+            throw new IllegalStateException("cannot read the task count of " + AuthModule.class.getName(), e);
+        }
+        if (!(n instanceof Number) || ((Number) n).intValue() < 1) {
+            throw new IllegalStateException("taskCount of " + AuthModule.class.getName() + " returned " + n);
+        }
+        return ((Number) n).intValue();
+    }
+
+    // ---------------- Login failures ----------------
+
+    // Counts a failure for *principal/*ip in the bucket of *failedAtIn (now when absent) of all
+    // three windows; emits once per counter. A failure carrying *failureId is counted once per
+    // counter, however often Rama retries the record holding it.
+    private static Block.Impl countFailure(long bucketMillis) {
+        return Block
+                .each((Long at) -> at != null ? at : System.currentTimeMillis(), "*failedAtIn").out("*failedAt")
+                .each((Long now, Long size) -> AuthFns.bucketOf(now, size), "*failedAt", bucketMillis).out("*bucket")
+                .each((String p, String ip) -> AuthFns.failureKeys(p,ip), "*principal","*ip").out("*fkeys")
+                .each(Ops.EXPLODE, "*fkeys").out("*fkey")
+                .hashPartition("*fkey")
+                .each((String fkey, UUID id) -> AuthFns.failureMark(fkey, id), "*fkey", "*failureId").out("*mark")
+                .ifTrue(new Expr(Ops.IS_NULL, "*mark"),
+                        Block.each(Ops.IDENTITY, null).out("*counted"),
+                        Block.localSelect("$$loginFailureIds", Path.key("*bucket").key("*mark")).out("*counted")
+                                .localTransform("$$loginFailureIds", Path.key("*bucket").key("*mark").termVal(true)))
+                .ifTrue(new Expr(Ops.IS_NULL, "*counted"),
+                        Block.localTransform("$$loginFailures", Path.key("*fkey").key("*bucket").nullToVal(0L).term(Ops.INC))
+                                .localTransform("$$loginFailureBuckets", Path.key("*bucket").voidSetElem().termVal("*fkey")));
+    }
+
+    // ---------------- Email index ----------------
+
+    // On *emailLower's partition, binds *existing to its user id or null. A filter miss is
+    // definite, so it answers without reading $$emailIndex. Only the read-only queries use it:
+    // commands that write decide on a $$emailIndex read, so a filter bug cannot mint a duplicate.
+    private static Block.Impl lookupEmail() {
+        return Block
+                .each((EmailFilter f, String email) -> f.mightContain(email), "*emailFilter", "*emailLower").out("*maybe")
+                .ifTrue("*maybe",
+                        Block.localSelect("$$emailIndex", Path.key("*emailLower")).out("*existing"),
+                        Block.each(Ops.IDENTITY, null).out("*existing"));
+    }
+
+    // ---------------- Sessions ----------------
+
+    // Stores a new session for *sid/*uid/*device/*ip and indexes it by expiry and by user.
+    private static Block.Impl createSession(long idleTtl, long absoluteTtl, long bucketMillis) {
+        return Block
+                .each(System::currentTimeMillis).out("*createdAt")
+                .each((UUID sid, UUID uid, String dev, String ip, Long now) -> AuthFns.buildSession(sid,uid,dev,ip,now),
+                        "*sid","*uid","*device","*ip","*createdAt").out("*sess0")
+                .each((java.util.Map s, Long idle, Long abs) -> AuthFns.withTtl(s, idle, abs),
+                        "*sess0", idleTtl, absoluteTtl).out("*sess")
+                .each((java.util.Map s, Long size) -> AuthFns.expiryBucket(s, size),
+                        "*sess", bucketMillis).out("*expBucket")
+                .hashPartition("*sid")
+                .localTransform("$$sessionsById", Path.key("*sid").termVal("*sess"))
+                .localTransform("$$sessionExpiry", Path.key("*expBucket").voidSetElem().termVal("*sid"))
+                .each((java.util.Map sess) -> AuthFns.sessionRef(sess), "*sess").out("*ref")
+                .hashPartition("*uid")
+                .localTransform("$$sessionsByUser", Path.key("*uid").key("*sid").termVal("*ref"));
+    }
+
+    // Revokes *sid on its partition, files it for the next sweep and drops it from its user's index.
+    private static Block.Impl revokeSession(long bucketMillis) {
+        return Block
+                .hashPartition("*sid")
+                .localSelect("$$sessionsById", Path.key("*sid")).out("*s")
+                .ifTrue(new Expr(Ops.IS_NOT_NULL, "*s"),
+                        Block.localTransform("$$sessionsById", Path.key("*sid").key("revoked").termVal(true))
+                                // let the next sweep delete it
+                                .each(System::currentTimeMillis).out("*now")
+                                .each((Long now, Long size) -> AuthFns.bucketOf(now, size), "*now", bucketMillis).out("*expBucket")
+                                .localTransform("$$sessionExpiry", Path.key("*expBucket").voidSetElem().termVal("*sid"))
+                                .each(Ops.GET, "*s", "userId").out("*sUid")
+                                .macro(unindexSession("*sUid", "*sid")));
+    }
+
+    private static Block.Impl unindexSession(String uidVar, String sidVar) {
+        return Block
+                .hashPartition(uidVar)
+                .localTransform("$$sessionsByUser", Path.key(uidVar).key(sidVar).termVoid())
+                .localSelect("$$sessionsByUser", Path.key(uidVar).view(Ops.SIZE)).out("*userLeft")
+                .ifTrue(new Expr((Number n) -> AuthFns.isZero(n), "*userLeft"),
+                        Block.localTransform("$$sessionsByUser", Path.key(uidVar).termVoid()));
+    }
+
+    // ---------------- Idempotency ----------------
+
+    // Events carrying a requestId are claimed on the requestId's partition before any branch runs.
+    // The claim stays pending until rememberResult stores the result next to it. A repeat of a
+    // finished request is dropped and gets its result ack-returned again; a repeat while the claim
+    // is pending is dropped too, unless it is the claiming append itself (same attemptId) being
+    // retried by Rama after a failure further down, which must redo the work. A repeat whose
+    // requestHash differs from the claim's is dropped with REQUEST_MISMATCH.
+    // Binds *reqId (null for events without one); later steps record results with rememberResult.
+    private static Block.Impl claimRequest(String requests, String expiry, long ttl, long bucketMillis) {
+        return Block
+                .each(Ops.GET, "*e", "requestId").out("*reqId")
+                .ifTrue(new Expr(Ops.IS_NULL, "*reqId"),
+                        Block.each(Ops.IDENTITY, false).out("*dup"),
+                        Block.each(Ops.GET, "*e", "attemptId").out("*attemptId")
+                                .each(Ops.GET, "*e", "requestHash").out("*reqHash")
+                                .hashPartition("*reqId")
+                                .each(System::currentTimeMillis).out("*reqNow")
+                                .localSelect(requests, Path.key("*reqId")).out("*stored")
+                                .each((java.util.Map r, Long now) -> AuthFns.liveRequest(r, now), "*stored", "*reqNow").out("*prior")
+                                .ifTrue(new Expr(Ops.IS_NULL, "*prior"),
+                                        Block.each((Long now, Long t) -> now + t, "*reqNow", ttl).out("*reqExp")
+                                                .each((Long exp, Long size) -> AuthFns.bucketOf(exp, size), "*reqExp", bucketMillis).out("*reqBucket")
+                                                .each((Long exp, UUID attempt, String hash) -> AuthFns.pendingRequest(exp, attempt, hash),
+                                                        "*reqExp", "*attemptId", "*reqHash").out("*claim")
+                                                .localTransform(requests, Path.key("*reqId").termVal("*claim"))
+                                                .localTransform(expiry, Path.key("*reqBucket").voidSetElem().termVal("*reqId"))
+                                                .each(Ops.IDENTITY, false).out("*dup"),
+                                        Block.ifTrue(new Expr((java.util.Map r, String hash) -> AuthFns.sameRequest(r, hash), "*prior", "*reqHash"),
+                                                Block.each(Ops.GET, "*prior", "result").out("*priorResult")
+                                                        .ifTrue(new Expr(Ops.IS_NOT_NULL, "*priorResult"),
+                                                                Block.ackReturn("*priorResult")
+                                                                        .each(Ops.IDENTITY, true).out("*dup"),
+                                                                Block.each((java.util.Map r, UUID attempt) -> !AuthFns.isRetryOf(r, attempt), "*prior", "*attemptId").out("*dup")),
+                                                // same key, different request: refused, never answered with another's result
+                                                Block.ackReturn(AuthFns.REQUEST_MISMATCH)
+                                                        .each(Ops.IDENTITY, true).out("*dup"))))
+                .keepTrue(new Expr(Ops.NOT, "*dup"));
+    }
+
+    private static Block.Impl rememberResult(String requests, String resultVar) {
+        return Block.ifTrue(new Expr(Ops.IS_NOT_NULL, "*reqId"),
+                Block.hashPartition("*reqId")
+                        .localTransform(requests, Path.key("*reqId").key("result").termVal(resultVar)));
+    }
+
+    // expects *now; drops every request whose expiry bucket has fully passed
+    private static Block.Impl sweepRequests(String requests, String expiry, long bucketMillis) {
+        return Block
+                .each((Long now, Long size) -> AuthFns.bucketOf(now, size), "*now", bucketMillis).out("*curReqBucket")
+                .localSelect(expiry, Path.subselect(Path.sortedMapRangeTo("*curReqBucket").mapKeys())).out("*dueReqBuckets")
+                .each(Ops.EXPLODE, "*dueReqBuckets").out("*dueReqBucket")
+                .anchor("requestBucket")
+                .localSelect(expiry, Path.key("*dueReqBucket").all()).out("*rid")
+                // a key reused after expiring was filed under a later bucket; leave it alone
+                .localSelect(requests, Path.key("*rid")).out("*r")
+                .ifTrue(new Expr((java.util.Map r, Long now) -> AuthFns.liveRequest(r, now) == null, "*r", "*now"),
+                        Block.localTransform(requests, Path.key("*rid").termVoid()))
+                .hook("requestBucket")
+                .localTransform(expiry, Path.key("*dueReqBucket").termVoid());
+    }
 }
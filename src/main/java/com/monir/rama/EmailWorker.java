@@ -0,0 +1,309 @@
+package com.monir.rama;
+
+import com.monir.rama.util.AuthFns;
+import com.monir.rama.util.Config;
+import com.monir.rama.util.Ids;
+import com.monir.rama.util.Json;
+import com.monir.rama.util.MailTransport;
+import com.monir.rama.util.MailTransport.Mail;
+import com.monir.rama.util.Metrics;
+import com.monir.rama.util.OtpSeal;
+import com.rpl.rama.Depot;
+import com.rpl.rama.DepotPartitionInfo;
+import com.rpl.rama.cluster.ClusterManagerBase;
+import com.rpl.rama.cluster.RamaClusterManager;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+// Drains *out_email. Each worker owns the depot partitions p with p % workerCount == workerIndex,
+// reads them from offsets persisted in a local file (see loadOffsets), turns EmailOtpRequested messages into mail
+// and hands them to a MailTransport in batches, paced by a rate limit. Failed messages are retried
+// with backoff and dead-lettered after maxAttempts. The next batch of a partition is only read
+// once the previous one is settled, so a slow relay shows up as lag rather than memory.
+//
+// Delivery is at-least-once: an offset is saved after its batch settles, so a crash in between
+// resends that batch. HttpMain runs one in-process for local development; against a cluster run
+// `java -cp auth-service.jar com.monir.rama.EmailWorker --auth.cluster.conductorHost=...`.
+public class EmailWorker implements AutoCloseable {
+
+    private final Depot depot;
+    private final MailTransport transport;
+    private final int[] partitions;
+    private final int batchSize;
+    private final long pollMillis;
+    private final long sendIntervalNanos;
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final Path offsetFile;
+    private final Path deadLetterFile;
+    private final String instance;
+
+    private final Map<Integer, Long> offsets = new HashMap<>();
+    private final long[] lag;
+    private long nextSendAt = System.nanoTime();
+    private volatile boolean running = true;
+    private Thread thread;
+
+    private final LongAdder sent     = Metrics.counter("auth_email_sent_total", "Mail accepted by the transport", "");
+    private final LongAdder retried  = Metrics.counter("auth_email_retries_total", "Mail sent again after a failure", "");
+    private final LongAdder dead     = Metrics.counter("auth_email_dead_lettered_total", "Mail given up on and written to the dead-letter file", "");
+    private final LongAdder skipped  = Metrics.counter("auth_email_skipped_total", "Depot records that needed no mail (other types, expired codes)", "");
+
+    public EmailWorker(Depot depot, MailTransport transport, int numPartitions, int workerIndex, int workerCount,
+                       int batchSize, long pollMillis, double ratePerSecond, int maxAttempts, long backoffMillis,
+                       Path offsetFile, Path deadLetterFile, String instance) throws Exception {
+        OtpSeal.requireKey("EmailWorker");
+        this.depot = depot;
+        this.transport = transport;
+        this.partitions = IntStream.range(0, numPartitions)
+                .filter(p -> p % workerCount == workerIndex).toArray();
+        this.batchSize = batchSize;
+        this.pollMillis = pollMillis;
+        this.sendIntervalNanos = (long) (1e9 / ratePerSecond);
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+        this.offsetFile = offsetFile;
+        this.deadLetterFile = deadLetterFile;
+        this.instance = instance;
+        this.lag = new long[numPartitions];
+        loadOffsets();
+        for (int p : partitions) clampOffset(p, depot.getPartitionInfo(p));
+        for (int p : partitions) {
+            Metrics.gauge("auth_email_lag", p == partitions[0] ? "Depot entries not yet delivered, per partition" : null,
+                    "partition=\"" + p + "\"", () -> lag[p]);
+        }
+    }
+
+    // Against a deployed module; offsets are kept per conductor.
+    public static EmailWorker configured(ClusterManagerBase cluster) throws Exception {
+        return configured(cluster, "remote:" + Config.str("auth.cluster.conductorHost", "rama.yaml"));
+    }
+
+    // The partition count is read from the module (see AuthModule.taskCount). instance names the
+    // module instance the offsets belong to; offsets stored for another one are not used.
+    public static EmailWorker configured(ClusterManagerBase cluster, String instance) throws Exception {
+        return new EmailWorker(
+                cluster.clusterDepot(AuthModule.class.getName(), "*out_email"),
+                MailTransport.configured(),
+                AuthModule.taskCount(cluster),
+                Config.intVal("auth.email.workerIndex", 0),
+                Config.intVal("auth.email.workerCount", 1),
+                Config.intVal("auth.email.batchSize", 100),
+                Config.longVal("auth.email.pollMillis", 500),
+                Double.parseDouble(Config.str("auth.email.ratePerSecond", "50")),
+                Config.intVal("auth.email.maxAttempts", 5),
+                Config.longVal("auth.email.retryBackoffMillis", 500),
+                Path.of(Config.str("auth.email.offsetFile", "email-offsets.properties")),
+                Path.of(Config.str("auth.email.deadLetterFile", "email-dead-letter.jsonl")),
+                instance);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config.init(args);
+        String conductor = Config.str("auth.cluster.conductorHost", null);
+        try (RamaClusterManager cluster = conductor == null
+                     ? RamaClusterManager.open()
+                     : RamaClusterManager.open(Map.of("conductor.host", conductor));
+             EmailWorker worker = configured(cluster)) {
+            int port = Config.intVal("auth.email.metricsPort", 9091);
+            HttpServer http = Metrics.serve(port);
+            worker.start();
+            System.out.println("EmailWorker draining " + Arrays.toString(worker.partitions)
+                    + " via " + worker.transport.name() + "; metrics on :" + http.getAddress().getPort());
+            new CountDownLatch(1).await();
+        }
+    }
+
+    public EmailWorker start() {
+        thread = new Thread(this::run, "email-worker");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    private void run() {
+        while (running) {
+            boolean progressed = false;
+            for (int p : partitions) {
+                try {
+                    progressed |= drain(p);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    // depot unreachable or similar; the offset is unchanged, so the batch is read again
+                    System.err.println("email worker: partition " + p + ": " + e);
+                }
+            }
+            if (!progressed) {
+                try { Thread.sleep(pollMillis); } catch (InterruptedException e) { return; }
+            }
+        }
+    }
+
+    private boolean drain(int p) throws Exception {
+        DepotPartitionInfo info = depot.getPartitionInfo(p);
+        long from = clampOffset(p, info);
+        long end = info.getEndOffset();
+        lag[p] = end - from;
+        if (from >= end) return false;
+
+        long to = Math.min(end, from + batchSize);
+        List<?> records = depot.read(p, from, to);
+        List<Mail> mails = new ArrayList<>(records.size());
+        long now = System.currentTimeMillis();
+        for (Object r : records) {
+            Mail m = toMail(r, now);
+            if (m != null) mails.add(m);
+        }
+        deliver(mails);
+
+        offsets.put(p, from + records.size());
+        saveOffsets();
+        lag[p] = end - (from + records.size());
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Mail toMail(Object record, long now) throws IOException {
+        if (!(record instanceof Map) || !"EmailOtpRequested".equals(((Map<?,?>) record).get("type"))) {
+            skipped.increment();
+            return null;
+        }
+        Map<String,Object> m = (Map<String,Object>) record;
+        Object expires = m.get("expiresAtMillis");
+        if (expires instanceof Number && ((Number) expires).longValue() <= now) {
+            skipped.increment();
+            return null;
+        }
+        // also checked at /api/register and by UserImport; records from before that are caught here
+        String to = String.valueOf(m.get("email"));
+        if (!AuthFns.isValidEmail(to)) {
+            deadLetter(List.of(m), "invalid recipient address");
+            return null;
+        }
+        String code;
+        try {
+            code = OtpSeal.open(String.valueOf(m.get("otpSealed")));
+        } catch (RuntimeException e) {
+            deadLetter(List.of(m), "cannot open OTP: " + e.getMessage());
+            return null;
+        }
+        String body = "Your verification code is " + code + "."
+                + (expires instanceof Number ? "\nIt expires at " + Instant.ofEpochMilli(((Number) expires).longValue()) + "." : "");
+        Object id = m.get("messageId");
+        return new Mail(id instanceof UUID ? Ids.toText((UUID) id) : String.valueOf(id),
+                to, "Your verification code", body, m);
+    }
+
+    private void deliver(List<Mail> mails) throws InterruptedException, IOException {
+        List<Mail> pending = mails;
+        for (int attempt = 1; !pending.isEmpty(); attempt++) {
+            pace(pending.size());
+            long start = System.nanoTime();
+            List<Mail> failed;
+            String reason = "rejected by transport";
+            try {
+                failed = transport.send(pending);
+            } catch (IOException e) {
+                failed = pending;
+                reason = e.toString();
+            }
+            Metrics.EMAIL_SEND.get(transport.name()).recordSinceNanos(start);
+            sent.add(pending.size() - failed.size());
+            if (failed.isEmpty()) return;
+            if (attempt >= maxAttempts) {
+                List<Map<String,Object>> sources = new ArrayList<>(failed.size());
+                for (Mail m : failed) sources.add(m.source);
+                deadLetter(sources, reason);
+                return;
+            }
+            retried.add(failed.size());
+            Thread.sleep(Math.min(backoffMillis << (attempt - 1), TimeUnit.MINUTES.toMillis(1)));
+            pending = failed;
+        }
+    }
+
+    // spaces sends out to the configured rate; only this worker's thread calls it
+    private void pace(int messages) throws InterruptedException {
+        long now = System.nanoTime();
+        long wait = nextSendAt - now;
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        nextSendAt = Math.max(now, nextSendAt) + messages * sendIntervalNanos;
+    }
+
+    private void deadLetter(List<Map<String,Object>> records, String reason) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map<String,Object> r : records) {
+            Map<String,Object> line = new LinkedHashMap<>();
+            line.put("at", System.currentTimeMillis());
+            line.put("reason", reason);
+            line.put("record", r);
+            sb.append(Json.M.writeValueAsString(line)).append('\n');
+        }
+        Files.writeString(deadLetterFile, sb, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        dead.add(records.size());
+    }
+
+    // An offset past the partition's end means the depot is not the one the offset was saved
+    // against (a fresh cluster, or a module redeployed from scratch); start that partition over.
+    private long clampOffset(int p, DepotPartitionInfo info) {
+        long stored = offsets.getOrDefault(p, 0L);
+        if (stored > info.getEndOffset()) {
+            System.err.println("email worker: partition " + p + ": saved offset " + stored
+                    + " is past the depot end " + info.getEndOffset() + "; reading from the start");
+            stored = info.getStartOffset();
+            offsets.put(p, stored);
+        }
+        return Math.max(stored, info.getStartOffset());
+    }
+
+    // Offsets are only reused by the module instance that saved them; HttpMain's in-process
+    // cluster is new on every run, so its offsets never carry over.
+    private void loadOffsets() throws IOException {
+        if (!Files.exists(offsetFile)) return;
+        Properties props = new Properties();
+        try (Reader r = Files.newBufferedReader(offsetFile)) { props.load(r); }
+        if (!instance.equals(props.getProperty("instance"))) {
+            System.err.println("email worker: " + offsetFile + " belongs to " + props.getProperty("instance")
+                    + ", not " + instance + "; reading from the start");
+            return;
+        }
+        for (String k : props.stringPropertyNames()) {
+            if (k.startsWith("partition.")) offsets.put(Integer.parseInt(k.substring(10)), Long.parseLong(props.getProperty(k)));
+        }
+    }
+
+    // write-then-rename so a crash never leaves a torn offsets file
+    private void saveOffsets() throws IOException {
+        Properties props = new Properties();
+        props.setProperty("instance", instance);
+        offsets.forEach((p, o) -> props.setProperty("partition." + p, Long.toString(o)));
+        Path tmp = offsetFile.resolveSibling(offsetFile.getFileName() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp)) { props.store(w, "*out_email offsets"); }
+        Files.move(tmp, offsetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws Exception {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        transport.close();
+    }
+}
@@ -1,227 +1,712 @@
 package com.monir.rama;
 
+import com.monir.rama.util.AuthFns;
+import com.monir.rama.util.BatchingAppender;
+import com.monir.rama.util.Config;
+import com.monir.rama.util.Hashing;
+import com.monir.rama.util.Ids;
 import com.monir.rama.util.Json;
+import com.monir.rama.util.Metrics;
+import com.monir.rama.util.OtpSeal;
+import com.monir.rama.util.RateLimiter;
+import com.monir.rama.util.SessionTokens;
 import com.rpl.rama.Depot;
 import com.rpl.rama.QueryTopologyClient;
+import com.rpl.rama.cluster.ClusterManagerBase;
+import com.rpl.rama.cluster.RamaClusterManager;
 import com.rpl.rama.test.InProcessCluster;
 import com.rpl.rama.test.LaunchConfig;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.nio.charset.StandardCharsets;
-import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
 
 public class HttpMain {
+    // Read on first use, so settings given on the command line (Config.init) apply.
+    private static final class Settings {
+        // "async" (default): handlers chain appendAsync/invokeAsync and a small fixed pool serves HTTP.
+        // "blocking": the original thread-per-request model, kept for load comparisons.
+        static final boolean BLOCKING = "blocking".equalsIgnoreCase(Config.str("auth.http.mode", "async"));
+        // Requests admitted but not yet answered; anything over the limit gets a 503 up front.
+        static final Semaphore IN_FLIGHT = new Semaphore(Config.intVal("auth.http.maxInFlight", 512));
+        static final int MAX_BATCH_IDS = Config.intVal("auth.http.maxBatchIds", 1_000);
+        // Per-route token buckets keyed by client ip and principal (see Limits)
+        static final boolean RATE_LIMITS = Config.bool("auth.ratelimit.enabled", true);
+        static final RateLimiter LIMITER = new RateLimiter(Config.intVal("auth.ratelimit.slots", 1 << 16));
+        // behind a proxy the client is the first X-Forwarded-For entry
+        static final boolean TRUST_FORWARDED = Config.bool("auth.http.trustForwardedFor", false);
+        // proxies in front of this server that append to X-Forwarded-For
+        static final int TRUSTED_PROXIES = Math.max(1, Config.intVal("auth.http.trustedProxies", 1));
+        static final LongAdder LIMITED_IP = Metrics.counter("auth_http_rate_limited_total",
+                "Requests refused with 429 by the per-route rate limits", "kind=\"ip\"");
+        static final LongAdder LIMITED_PRINCIPAL = Metrics.counter("auth_http_rate_limited_total", null, "kind=\"principal\"");
+    }
+
+    // Rate limits of one route: auth.ratelimit.<path>.ip and .principal as "rate:burst" (tokens
+    // per second and bucket size), else auth.ratelimit.default.*. Routes that run PBKDF2 have
+    // built-in defaults. The principal is the body's or query's email, principal or userId.
+    private static final class Limits {
+        private static final Set<String> HASHING = Set.of("/api/register", "/api/otp/check", "/api/login");
+        private static final Map<String, Limits> ROUTES = new ConcurrentHashMap<>();
+
+        final RateLimiter.Rule ip, principal;
+        final long ipSeed, principalSeed;
+
+        private Limits(String path) {
+            boolean hashing = HASHING.contains(path);
+            ip        = Settings.RATE_LIMITS ? rule(path, "ip", hashing ? "20:40" : null) : null;
+            principal = Settings.RATE_LIMITS ? rule(path, "principal", hashing ? "1:5" : null) : null;
+            ipSeed        = RateLimiter.seed(path + "|ip");
+            principalSeed = RateLimiter.seed(path + "|principal");
+        }
+
+        private static RateLimiter.Rule rule(String path, String kind, String builtIn) {
+            return RateLimiter.Rule.parse(Config.str("auth.ratelimit." + path + "." + kind,
+                    Config.str("auth.ratelimit.default." + kind, builtIn)));
+        }
+
+        static Limits of(HttpExchange ex) {
+            String path = ex.getHttpContext().getPath();
+            Limits l = ROUTES.get(path);
+            return l != null ? l : ROUTES.computeIfAbsent(path, Limits::new);
+        }
+    }
+
+    // the answer to most commands; shared rather than built per response
+    private static final Map<String,Object> ACCEPTED = Map.of("status", "accepted");
+    private static final Map<String,Object> INVALID_TOKEN = Map.of("valid", false);
+    private static final Map<String,Object> SESSION_EXPIRED = Map.of("status", "expired");
+    private static final Map<String,Object> LOGIN_LOCKED = Map.of("ok", false, "result", "locked");
+    private static final String[] PRINCIPAL_FIELDS = { "email", "principal", "userId" };
+    private static final String[] SCOPE_FIELDS = { "email", "principal", "userId", "sessionId" };
+    private static final Set<String> UNHASHED_FIELDS = Set.of("password", "otp");
+
+    // args: --tasks=N --threads=N --port=N --config=auth.properties, or any --auth.key=value
+    //
+    // --auth.cluster.mode=inprocess (default) launches AuthModule on an InProcessCluster inside
+    // this JVM. --auth.cluster.mode=remote connects to a Rama cluster where the module was
+    // deployed with scripts/deploy-module.sh; the server then holds no state of its own and
+    // any number of replicas can run behind a load balancer.
     public static void main(String[] args) throws Exception {
-        try (InProcessCluster cluster = InProcessCluster.create()) {
-            cluster.launchModule(new AuthModule(), new LaunchConfig(1, 1));
-            System.out.println("AuthModule launched on InProcessCluster.");
-
-            // Depots
-            Depot reg  = cluster.clusterDepot(AuthModule.class.getName(), "*registration_cmds");
-            Depot auth = cluster.clusterDepot(AuthModule.class.getName(), "*auth_events");
-
-            // Query clients (reuse these)
-            QueryTopologyClient<Object> qCanRegister   =
-                    cluster.clusterQuery(AuthModule.class.getName(), "canRegister");
-            QueryTopologyClient<Object> qUserIdByEmail =
-                    cluster.clusterQuery(AuthModule.class.getName(), "getUserIdByEmail");
-            QueryTopologyClient<Object> qCheckOtp      =
-                    cluster.clusterQuery(AuthModule.class.getName(), "checkOtp");
-            QueryTopologyClient<Object> qCheckSession  =
-                    cluster.clusterQuery(AuthModule.class.getName(), "checkSession");
-
-            HttpServer http = HttpServer.create(new InetSocketAddress(8080), 0);
-            http.setExecutor(Executors.newCachedThreadPool());
-
-            // -------- Commands --------
-
-            // POST /api/register  {email, name}
-            http.createContext("/api/register", ex -> handlePost(ex, in -> {
-                String email = norm(str(in.get("email")));
-                String name  = str(in.get("name"));
-                require(nonEmpty(email), "email is required");
-                require(nonEmpty(name),  "name is required");
-
-                Map<String,Object> evt = new HashMap<>();
-                evt.put("type","RegisterRequested");
-                evt.put("requestId", UUID.randomUUID().toString());
-                evt.put("email", email);
-                evt.put("name",  name);
-                reg.append(evt); // HashMap avoids JDK MapN serialization issues
-
-                // Poll for userId briefly so client can get it back if ready
-                Object userId = waitFor(Duration.ofSeconds(3),
-                        () -> qUserIdByEmail.invoke(email));
+        Config.init(args);
+        if ("remote".equalsIgnoreCase(Config.str("auth.cluster.mode", "inprocess"))) {
+            // replicas must share token keys; a per-process key would reject the others' tokens
+            SessionTokens.requireKeys();
+            // conductor address from auth.cluster.conductorHost, else rama.yaml on the classpath
+            String conductor = Config.str("auth.cluster.conductorHost", null);
+            try (RamaClusterManager cluster = conductor == null
+                    ? RamaClusterManager.open()
+                    : RamaClusterManager.open(Map.of("conductor.host", conductor))) {
+                System.out.println("Connected to Rama cluster" + (conductor == null ? "" : " at " + conductor) + ".");
+                serve(cluster);
+            }
+        } else {
+            // tasks must be a power of two; threads must divide it
+            int tasks   = Config.intVal("auth.launch.tasks", 1);
+            int threads = Config.intVal("auth.launch.threads", 1);
+            // the module and the email worker share this JVM, so codes may go unsealed here
+            OtpSeal.allowPlaintext();
+            try (InProcessCluster cluster = InProcessCluster.create()) {
+                cluster.launchModule(new AuthModule(), new LaunchConfig(tasks, threads));
+                System.out.println("AuthModule launched on InProcessCluster (" + tasks + " tasks, " + threads + " threads).");
+                // against a cluster the email workers run as their own processes (see EmailWorker)
+                if (Config.bool("auth.email.inProcess", true)) {
+                    EmailWorker.configured(cluster, "inprocess:" + Ids.toText(Ids.newId())).start();
+                }
+                serve(cluster);
+            }
+        }
+    }
+
+    private static void serve(ClusterManagerBase cluster) throws Exception {
+        HttpServer http = start(cluster, Config.intVal("auth.http.port", 8080));
+        System.out.println("HTTP listening on http://localhost:" + http.getAddress().getPort()
+                + " (" + (Settings.BLOCKING ? "blocking" : "async") + " mode)  (Ctrl+C to stop)");
+        new CountDownLatch(1).await();
+    }
 
+    // Wires every endpoint to the module's depots and queries and starts serving.
+    public static HttpServer start(ClusterManagerBase cluster, int port) throws Exception {
+        // Depots
+        Depot reg  = cluster.clusterDepot(AuthModule.class.getName(), "*registration_cmds");
+        Depot auth = cluster.clusterDepot(AuthModule.class.getName(), "*auth_events");
+
+        // Fire-and-forget commands are coalesced; register still appends directly for its ackReturn
+        BatchingAppender regBatch  = BatchingAppender.configured("registration_cmds", reg);
+        BatchingAppender authBatch = BatchingAppender.configured("auth_events", auth);
+
+        // Recent logouts, for checking session tokens without a query
+        SessionRevocations revocations = SessionRevocations.configured(cluster).start();
+        long tokenTtl    = SessionRevocations.tokenTtlMillis();
+        long absoluteTtl = AuthModule.sessionAbsoluteTtlMillis();
+        LongAdder tokensLocal    = Metrics.counter("auth_session_token_checks_total", "Session token checks by how they were answered", "result=\"local\"");
+        LongAdder tokensFallback = Metrics.counter("auth_session_token_checks_total", null, "result=\"query\"");
+        LongAdder tokensRejected = Metrics.counter("auth_session_token_checks_total", null, "result=\"rejected\"");
+
+        // Query clients (reuse these)
+        QueryTopologyClient<Object> qCanRegister   =
+                cluster.clusterQuery(AuthModule.class.getName(), "canRegister");
+        QueryTopologyClient<Object> qUserIdByEmail =
+                cluster.clusterQuery(AuthModule.class.getName(), "getUserIdByEmail");
+        QueryTopologyClient<Object> qCheckPassword =
+                cluster.clusterQuery(AuthModule.class.getName(), "checkPassword");
+        QueryTopologyClient<Object> qCheckSession  =
+                cluster.clusterQuery(AuthModule.class.getName(), "checkSession");
+        QueryTopologyClient<Object> qIsLockedOut   =
+                cluster.clusterQuery(AuthModule.class.getName(), "isLockedOut");
+        QueryTopologyClient<Object> qListSessions  =
+                cluster.clusterQuery(AuthModule.class.getName(), "listSessions");
+        QueryTopologyClient<Object> qSessionsBatch =
+                cluster.clusterQuery(AuthModule.class.getName(), "checkSessionsBatch");
+        QueryTopologyClient<Object> qUsersBatch    =
+                cluster.clusterQuery(AuthModule.class.getName(), "getUsersBatch");
+
+        HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+        http.setExecutor(httpExecutor());
+
+        // -------- Commands --------
+
+        // POST /api/register  {email, name}
+        http.createContext("/api/register", post((evt, requestId) -> {
+            String email = norm(str(evt.get("email")));
+            String name  = str(evt.get("name"));
+            require(nonEmpty(email), "email is required");
+            require(AuthFns.isValidEmail(email), "email is not a valid address");
+            require(nonEmpty(name),  "name is required");
+
+            evt.put("type","RegisterRequested");
+            // a retry with the same Idempotency-Key gets the first attempt's answer
+            keyed(evt, requestId);
+            evt.put("email", email);
+            // the append completes once the registration stream has processed the event and
+            // carries whatever it ackReturn'ed, so no polling is needed
+            return reg.appendAsync(evt).thenApply(acked -> {
+                Object userId = ackOf(acked, "registration");
                 if (userId != null) return Map.of("status","created","userId",userId);
-                return Map.of("status","accepted");
-            }));
-
-            // POST /api/verify-email  {userId}
-            http.createContext("/api/verify-email", ex -> handlePost(ex, in -> {
-                String uid = str(in.get("userId"));
-                require(nonEmpty(uid), "userId is required");
-                Map<String,Object> evt = new HashMap<>();
-                evt.put("type","EmailVerified");
-                evt.put("userId", uid);
-                reg.append(evt);
-                return Map.of("status","accepted");
-            }));
-
-            // POST /api/password  {userId, hash, algo, salt?, params?}
-            http.createContext("/api/password", ex -> handlePost(ex, in -> {
-                String uid  = str(in.get("userId"));
-                require(nonEmpty(uid), "userId is required");
-                require(in.containsKey("hash"), "hash is required");
-                require(in.containsKey("algo"), "algo is required");
-
-                Map<String,Object> evt = new HashMap<>();
-                evt.put("type","SetPasswordHash");
-                evt.put("userId", uid);
-                evt.put("hash", in.get("hash"));
-                evt.put("algo", in.get("algo"));
-                evt.put("salt", in.get("salt"));
-                evt.put("params", in.get("params"));
-                reg.append(evt);
-                return Map.of("status","accepted");
-            }));
-
-            // POST /api/login-failed  {principal, ip}
-            http.createContext("/api/login-failed", ex -> handlePost(ex, in -> {
-                String principal = str(in.get("principal"));
-                String ip        = str(in.get("ip"));
-                require(nonEmpty(principal), "principal is required");
-                require(nonEmpty(ip),        "ip is required");
-
-                Map<String,Object> evt = new HashMap<>();
-                evt.put("type","LoginFailed");
-                evt.put("principal", principal);
-                evt.put("ip", ip);
-                auth.append(evt);
-                return Map.of("status","accepted");
-            }));
-
-            // POST /api/session  {userId, device, ip}
-            http.createContext("/api/session", ex -> handlePost(ex, in -> {
-                String uid = str(in.get("userId"));
-                String dev = str(in.get("device"));
-                String ip  = str(in.get("ip"));
-                require(nonEmpty(uid), "userId is required");
-                require(nonEmpty(dev), "device is required");
-                require(nonEmpty(ip),  "ip is required");
-
-                Map<String,Object> evt = new HashMap<>();
-                evt.put("type","SessionRequested");
-                evt.put("userId", uid);
-                evt.put("device", dev);
-                evt.put("ip", ip);
-                auth.append(evt);
-                return Map.of("status","accepted");
-            }));
-
-            // POST /api/logout  {sessionId}
-            http.createContext("/api/logout", ex -> handlePost(ex, in -> {
-                String sid = str(in.get("sessionId"));
-                require(nonEmpty(sid), "sessionId is required");
-
-                Map<String,Object> evt = new HashMap<>();
-                evt.put("type","LogoutRequested");
-                evt.put("sessionId", sid);
-                auth.append(evt);
-                return Map.of("status","accepted");
-            }));
-
-            // -------- Queries --------
-
-            // GET /api/can-register?email=...
-            http.createContext("/api/can-register", ex -> handleGet(ex, params -> {
-                String email = norm(params.getOrDefault("email",""));
-                require(nonEmpty(email), "email is required");
-                Boolean ok = (Boolean) qCanRegister.invoke(email);
-                return Map.of("ok", ok);
-            }));
-
-            // GET /api/user-id?email=...
-            http.createContext("/api/user-id", ex -> handleGet(ex, params -> {
-                String email = norm(params.getOrDefault("email",""));
-                require(nonEmpty(email), "email is required");
-                Object userId = qUserIdByEmail.invoke(email);
-                return Map.of("userId", userId);
-            }));
-
-            // POST /api/otp/check  {userId, otp}
-            http.createContext("/api/otp/check", ex -> handlePost(ex, in -> {
-                String uid = str(in.get("userId"));
-                String otp = str(in.get("otp"));
-                require(nonEmpty(uid), "userId is required");
-                require(nonEmpty(otp), "otp is required");
-                Boolean ok = (Boolean) qCheckOtp.invoke(uid, otp);
-                return Map.of("ok", ok);
-            }));
-
-            // GET /api/session/get?sessionId=...
-            http.createContext("/api/session/get", ex -> handleGet(ex, params -> {
-                String sid = params.getOrDefault("sessionId", "");
-                require(nonEmpty(sid), "sessionId is required");
-                Object sess = qCheckSession.invoke(sid);
-                return Map.of("session", sess);
-            }));
-
-            http.start();
-            System.out.println("HTTP listening on http://localhost:8080  (Ctrl+C to stop)");
-            new CountDownLatch(1).await();
+                if (requestId != null) throw new Conflict("a request with this Idempotency-Key is still in progress");
+                return ACCEPTED;
+            });
+        }, "email", "name"));
+
+        // POST /api/verify-email  {userId}
+        http.createContext("/api/verify-email", post((evt, requestId) -> {
+            String uid = str(evt.get("userId"));
+            require(nonEmpty(uid), "userId is required");
+            evt.put("type","EmailVerified");
+            evt.put("userId", id(uid, "userId"));
+            return send(reg, regBatch, "registration", evt, requestId).thenApply(r -> ACCEPTED);
+        }, "userId"));
+
+        // POST /api/password  {userId, hash, algo, salt?, params?}
+        http.createContext("/api/password", post((evt, requestId) -> {
+            String uid  = str(evt.get("userId"));
+            require(nonEmpty(uid), "userId is required");
+            require(evt.get("hash") instanceof String, "hash is required");
+            require(evt.get("algo") instanceof String, "algo is required");
+            require(evt.get("salt") == null || evt.get("salt") instanceof String, "salt must be a string");
+            // the stored credential is typed, so reject shapes it cannot hold up front
+            require(evt.get("params") == null || evt.get("params") instanceof Map, "params must be an object");
+            Object iterations = evt.get("params") == null ? null : ((Map<?,?>) evt.get("params")).get("iterations");
+            require(iterations == null || AuthFns.supportedIterations(iterations),
+                    "params.iterations must be between 1 and " + Hashing.MAX_PASSWORD_ITERATIONS);
+
+            evt.put("type","SetPasswordHash");
+            evt.put("userId", id(uid, "userId"));
+            return send(reg, regBatch, "registration", evt, requestId).thenApply(r -> ACCEPTED);
+        }, "userId", "hash", "algo", "salt", "params"));
+
+        // POST /api/login-failed  {principal, ip}
+        http.createContext("/api/login-failed", post((evt, requestId) -> {
+            require(nonEmpty(str(evt.get("principal"))), "principal is required");
+            require(nonEmpty(str(evt.get("ip"))),        "ip is required");
+
+            evt.put("type","LoginFailed");
+            failure(evt);
+            return send(auth, authBatch, "auth", evt, requestId).thenApply(r -> ACCEPTED);
+        }, "principal", "ip"));
+
+        // POST /api/session  {userId, device, ip}
+        http.createContext("/api/session", post((evt, requestId) -> {
+            String uid = str(evt.get("userId"));
+            require(nonEmpty(uid), "userId is required");
+            require(nonEmpty(str(evt.get("device"))), "device is required");
+            require(nonEmpty(str(evt.get("ip"))),     "ip is required");
+
+            UUID sid = Ids.newId();
+            evt.put("type","SessionRequested");
+            evt.put("sessionId", sid);
+            evt.put("userId", id(uid, "userId"));
+            UUID userId = (UUID) evt.get("userId");
+            return send(auth, authBatch, "auth", evt, requestId).thenApply(r -> {
+                // a repeat is answered with the session the first attempt created
+                if (requestId != null && r == null) throw new Conflict("a request with this Idempotency-Key is still in progress");
+                UUID issued = requestId == null ? sid : (UUID) r;
+                return Map.of("status","accepted","sessionId",issued,"token",token(issued, userId, tokenTtl, absoluteTtl));
+            });
+        }, "userId", "device", "ip"));
+
+        // POST /api/login  {email, password, device, ip}  → {ok, result, sessionId?, userId?, token?}
+        // The password is never appended and the stored hash never leaves the cluster: lockout and
+        // user id come from queries, the checkPassword query runs PBKDF2 on the credential's
+        // partition and answers only the verdict, and only the outcome is appended, as a
+        // LoginFailed or a SessionRequested. result is "ok", "invalid", "locked" or "unsupported"
+        // (credential algo or cost the server cannot check).
+        http.createContext("/api/login", post((evt, requestId) -> {
+            String principal = norm(str(evt.remove("email")));
+            String password  = str(evt.remove("password"));
+            require(nonEmpty(principal), "email is required");
+            require(nonEmpty(password),  "password is required");
+            require(nonEmpty(str(evt.get("device"))), "device is required");
+            require(nonEmpty(str(evt.get("ip"))),     "ip is required");
+
+            CompletableFuture<Object> locked = Metrics.timeQuery("isLockedOut", qIsLockedOut.invokeAsync(principal, str(evt.get("ip"))));
+            CompletableFuture<Object> userId = Metrics.timeQuery("getUserIdByEmail", qUserIdByEmail.invokeAsync(principal));
+            return locked.thenCompose(isLocked -> {
+                if (Boolean.TRUE.equals(isLocked)) return CompletableFuture.completedFuture(LOGIN_LOCKED);
+                return userId.thenCompose(u -> {
+                    UUID uid = (UUID) u;
+                    CompletableFuture<Object> verdict = uid == null
+                            ? CompletableFuture.completedFuture("invalid")
+                            : Metrics.timeQuery("checkPassword", qCheckPassword.invokeAsync(uid, password));
+                    return verdict.thenCompose(v -> loginOutcome(auth, authBatch, evt, principal, uid, (String) v, requestId,
+                            tokenTtl, absoluteTtl));
+                });
+            });
+        }, "email", "password", "device", "ip"));
+
+        // POST /api/session/touch  {sessionId}  → {status, token?}
+        // Tokens last tokenTtl (the idle TTL by default), so a touch hands out a fresh one for
+        // the session it kept alive; "expired" when the session was no longer live.
+        http.createContext("/api/session/touch", post((evt, requestId) -> {
+            String sid = str(evt.get("sessionId"));
+            require(nonEmpty(sid), "sessionId is required");
+
+            UUID sessionId = id(sid, "sessionId");
+            evt.put("type","SessionTouched");
+            evt.put("sessionId", sessionId);
+            return send(auth, authBatch, "auth", evt, requestId)
+                    .thenCompose(r -> Metrics.timeQuery("checkSession", qCheckSession.invokeAsync(sessionId)))
+                    .thenApply(sess -> {
+                        if (!(sess instanceof Map)) return SESSION_EXPIRED;
+                        UUID uid = (UUID) ((Map<?,?>) sess).get("userId");
+                        return Map.<String,Object>of("status", "accepted", "token", token(sessionId, uid, tokenTtl, absoluteTtl));
+                    });
+        }, "sessionId"));
+
+        // POST /api/logout  {sessionId}
+        http.createContext("/api/logout", post((evt, requestId) -> {
+            String sid = str(evt.get("sessionId"));
+            require(nonEmpty(sid), "sessionId is required");
+
+            evt.put("type","LogoutRequested");
+            evt.put("sessionId", id(sid, "sessionId"));
+            return send(auth, authBatch, "auth", evt, requestId).thenApply(r -> ACCEPTED);
+        }, "sessionId"));
+
+        // POST /api/logout-all  {userId}  revokes every session of the user
+        http.createContext("/api/logout-all", post((evt, requestId) -> {
+            String uid = str(evt.get("userId"));
+            require(nonEmpty(uid), "userId is required");
+
+            evt.put("type","LogoutAllRequested");
+            evt.put("userId", id(uid, "userId"));
+            return send(auth, authBatch, "auth", evt, requestId).thenApply(r -> ACCEPTED);
+        }, "userId"));
+
+        // GET /api/stats  batching appender counters
+        http.createContext("/api/stats", ex -> handleGet(ex, params -> {
+            Map<String,Object> out = new LinkedHashMap<>();
+            out.put(regBatch.name(),  regBatch.stats());
+            out.put(authBatch.name(), authBatch.stats());
+            return CompletableFuture.completedFuture(out);
+        }));
+
+        // GET /metrics  Prometheus text format; not subject to admission so scrapes work under overload
+        http.createContext("/metrics", Metrics.handler(regBatch, authBatch));
+
+        // -------- Queries --------
+
+        // GET /api/can-register?email=...
+        http.createContext("/api/can-register", ex -> handleGet(ex, params -> {
+            String email = norm(params.getOrDefault("email",""));
+            require(nonEmpty(email), "email is required");
+            return Metrics.timeQuery("canRegister", qCanRegister.invokeAsync(email)).thenApply(ok -> Map.of("ok", ok));
+        }));
+
+        // GET /api/user-id?email=...
+        http.createContext("/api/user-id", ex -> handleGet(ex, params -> {
+            String email = norm(params.getOrDefault("email",""));
+            require(nonEmpty(email), "email is required");
+            return Metrics.timeQuery("getUserIdByEmail", qUserIdByEmail.invokeAsync(email)).thenApply(userId -> Collections.singletonMap("userId", userId));
+        }));
+
+        // GET /api/lockout?principal=...&ip=...
+        http.createContext("/api/lockout", ex -> handleGet(ex, params -> {
+            String principal = params.getOrDefault("principal", "");
+            String ip        = params.getOrDefault("ip", "");
+            require(nonEmpty(principal), "principal is required");
+            require(nonEmpty(ip),        "ip is required");
+            return Metrics.timeQuery("isLockedOut", qIsLockedOut.invokeAsync(principal, ip)).thenApply(locked -> Map.of("lockedOut", locked));
+        }));
+
+        // POST /api/otp/check  {userId, otp}
+        http.createContext("/api/otp/check", post((evt, requestId) -> {
+            String uid = str(evt.get("userId"));
+            require(nonEmpty(uid), "userId is required");
+            require(nonEmpty(str(evt.get("otp"))), "otp is required");
+
+            // an attempt is a write: it is counted and a correct code is consumed
+            evt.put("type","OtpAttempted");
+            evt.put("userId", id(uid, "userId"));
+            keyed(evt, requestId);
+            return reg.appendAsync(evt).thenApply(acked -> {
+                Object result = ackOf(acked, "registration");
+                if (result == null && requestId != null) throw new Conflict("a request with this Idempotency-Key is still in progress");
+                return Map.of("ok", "verified".equals(result), "result", String.valueOf(result));
+            });
+        }, "userId", "otp"));
+
+        // POST /api/session/verify  {token}  → {valid, session}; answered locally unless the token
+        // predates this server's revocation tail
+        http.createContext("/api/session/verify", post((in, requestId) -> {
+            String token = str(in.get("token"));
+            require(nonEmpty(token), "token is required");
+            SessionTokens.Claims c = SessionTokens.verify(token, System.currentTimeMillis());
+            Boolean revoked = c == null ? Boolean.TRUE : revocations.isRevoked(c);
+            if (revoked == null) {
+                tokensFallback.increment();
+                return Metrics.timeQuery("checkSession", qCheckSession.invokeAsync(c.sessionId)).thenApply(sess ->
+                        sess == null ? INVALID_TOKEN : validToken(c));
+            }
+            (revoked ? tokensRejected : tokensLocal).increment();
+            return CompletableFuture.completedFuture(revoked ? INVALID_TOKEN : validToken(c));
+        }, "token"));
+
+        // GET /api/session/get?sessionId=...
+        http.createContext("/api/session/get", ex -> handleGet(ex, params -> {
+            String sid = params.getOrDefault("sessionId", "");
+            require(nonEmpty(sid), "sessionId is required");
+            // null when the session is unknown, expired or revoked
+            return Metrics.timeQuery("checkSession", qCheckSession.invokeAsync(id(sid, "sessionId"))).thenApply(sess -> Collections.singletonMap("session", sess));
+        }));
+
+        // GET /api/sessions?userId=...  → {sessions:{id:session}}, live sessions only
+        http.createContext("/api/sessions", ex -> handleGet(ex, params -> {
+            String uid = params.getOrDefault("userId", "");
+            require(nonEmpty(uid), "userId is required");
+            return Metrics.timeQuery("listSessions", qListSessions.invokeAsync(id(uid, "userId"))).thenApply(found -> Map.of("sessions", found));
+        }));
+
+        // POST /api/session/get-batch  {sessionIds:[...]}  → {sessions:{id:session}}
+        http.createContext("/api/session/get-batch", post((in, requestId) -> {
+            List<UUID> sids = ids(in.get("sessionIds"), "sessionIds");
+            return Metrics.timeQuery("checkSessionsBatch", qSessionsBatch.invokeAsync(sids)).thenApply(found -> Map.of("sessions", found));
+        }, "sessionIds"));
+
+        // POST /api/user/get-batch  {userIds:[...]}  → {users:{id:user}}
+        http.createContext("/api/user/get-batch", post((in, requestId) -> {
+            List<UUID> uids = ids(in.get("userIds"), "userIds");
+            return Metrics.timeQuery("getUsersBatch", qUsersBatch.invokeAsync(uids)).thenApply(found -> Map.of("users", found));
+        }, "userIds"));
+
+        http.start();
+        return http;
+    }
+
+    private static ExecutorService httpExecutor() {
+        if (Settings.BLOCKING) return Executors.newCachedThreadPool();
+        // handlers only parse, validate and hand off to the Rama client, so a few threads suffice
+        return Executors.newFixedThreadPool(Config.intVal("auth.http.threads", 2 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    // Keyed commands (Idempotency-Key) skip the batcher: a repeat is answered with the first
+    // attempt's ackReturn, which only reaches the caller of a direct append.
+    private static CompletableFuture<Object> send(Depot depot, BatchingAppender batch, String topology,
+                                                  Map<String,Object> evt, String requestId) {
+        if (requestId == null) return batch.append(evt).thenApply(v -> null);
+        keyed(evt, requestId);
+        return depot.appendAsync(evt).thenApply(acked -> ackOf(acked, topology));
+    }
+
+    // what the topology ack-returned; a reused Idempotency-Key with a different body is refused
+    private static Object ackOf(Map<String,Object> acked, String topology) {
+        Object r = acked.get(topology);
+        if (AuthFns.REQUEST_MISMATCH.equals(r)) throw new Unprocessable("this Idempotency-Key was used for a different request");
+        return r;
+    }
+
+    // Stamps a direct append. attemptId is fresh per HTTP attempt: the module lets a record whose
+    // attemptId holds the pending claim through again (Rama's own retry) and drops the others.
+    private static void keyed(Map<String,Object> evt, String requestId) {
+        if (requestId != null) {
+            evt.put("requestId", requestId);
+            evt.put("attemptId", Ids.newId());
         }
+        evt.put("appendedAt", System.currentTimeMillis());
     }
 
     // ---------- helpers ----------
     private static String str(Object o) { return o == null ? null : String.valueOf(o); }
     private static boolean nonEmpty(String s) { return s != null && !s.isBlank(); }
     private static String norm(String s) { return s == null ? null : s.trim().toLowerCase(Locale.ROOT); }
+    private static UUID id(String s, String field) {
+        try { return Ids.parse(s); }
+        catch (IllegalArgumentException e) { throw new BadReq(field + " is not a valid id"); }
+    }
+    // the token never outlives the session's absolute lifetime
+    private static String token(UUID sid, UUID uid, long tokenTtl, long absoluteTtl) {
+        long expiresAt = Math.min(System.currentTimeMillis() + tokenTtl, Ids.createdAt(sid) + absoluteTtl);
+        return SessionTokens.issue(sid, uid, expiresAt);
+    }
+
+    // Appends what the password check decided: a session for "ok", a counted failure for
+    // "invalid"; "unsupported" changes nothing.
+    private static CompletableFuture<Map<String,Object>> loginOutcome(Depot auth, BatchingAppender authBatch,
+            Map<String,Object> evt, String principal, UUID uid, String verdict, String requestId, long tokenTtl, long absoluteTtl) {
+        if ("ok".equals(verdict)) {
+            UUID sid = Ids.newId();
+            evt.put("type","SessionRequested");
+            evt.put("sessionId", sid);
+            evt.put("userId", uid);
+            return send(auth, authBatch, "auth", evt, requestId).thenApply(r -> {
+                // a repeat is answered with the session the first attempt created
+                if (requestId != null && r == null) throw new Conflict("a request with this Idempotency-Key is still in progress");
+                UUID issued = requestId == null ? sid : (UUID) r;
+                return Map.of("ok", true, "result", "ok", "sessionId", issued, "userId", uid,
+                        "token", token(issued, uid, tokenTtl, absoluteTtl));
+            });
+        }
+        Map<String,Object> out = Map.of("ok", false, "result", verdict);
+        if (!"invalid".equals(verdict)) return CompletableFuture.completedFuture(out);
+        evt.remove("device");
+        evt.put("type","LoginFailed");
+        evt.put("principal", principal);
+        failure(evt);
+        return send(auth, authBatch, "auth", evt, requestId).thenApply(r -> out);
+    }
+
+    // A retried record must not count a failure twice: the module counts each failureId once,
+    // in the bucket of failedAt rather than of whenever the retry runs.
+    private static void failure(Map<String,Object> evt) {
+        evt.put("failureId", Ids.newId());
+        evt.put("failedAt", System.currentTimeMillis());
+    }
+
+    private static Map<String,Object> validToken(SessionTokens.Claims c) {
+        return Map.of("valid", true, "session", c.toMap());
+    }
+    private static List<UUID> ids(Object o, String field) {
+        require(o instanceof List && !((List<?>) o).isEmpty(), field + " must be a non-empty array");
+        List<?> raw = (List<?>) o;
+        require(raw.size() <= Settings.MAX_BATCH_IDS, field + " may hold at most " + Settings.MAX_BATCH_IDS + " ids");
+        List<UUID> out = new ArrayList<>(raw.size());
+        for (Object s : raw) out.add(id(str(s), field));
+        return out;
+    }
 
-    @FunctionalInterface interface BodyHandler { Map<String,Object> handle(Map<String,Object> in) throws Exception; }
-    @FunctionalInterface interface QueryHandler { Map<String,Object> handle(Map<String,String> params) throws Exception; }
+    // in holds only the endpoint's fields (see Json.readFields) and may be reused as its depot event;
+    // requestId is the endpoint-scoped Idempotency-Key header, or null
+    @FunctionalInterface interface BodyHandler { CompletionStage<Map<String,Object>> handle(Map<String,Object> in, String requestId) throws Exception; }
+    @FunctionalInterface interface QueryHandler { CompletionStage<Map<String,Object>> handle(Map<String,String> params) throws Exception; }
 
-    private static void handlePost(HttpExchange ex, BodyHandler fn) throws IOException {
+    private static HttpHandler post(BodyHandler fn, String... fields) {
+        return ex -> handlePost(ex, fn, fields);
+    }
+
+    private static void handlePost(HttpExchange ex, BodyHandler fn, String[] fields) throws IOException {
         if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) { methodNotAllowed(ex, "POST"); return; }
+        Limits limits = Limits.of(ex);
+        if (!allowIp(ex, limits)) return;
+        if (!admit(ex)) return;
+        long start = System.nanoTime();
+        CompletionStage<Map<String,Object>> out;
         try {
-            Map<String,Object> in = Json.readMap(ex.getRequestBody());
-            Map<String,Object> out = fn.handle(in);
-            respond(ex, 200, out);
-        } catch (BadReq br) {
-            respond(ex, 400, Map.of("error", br.getMessage()));
+            String key = ex.getRequestHeaders().getFirst("Idempotency-Key");
+            require(key == null || (!key.isBlank() && key.length() <= 255), "Idempotency-Key must be 1-255 characters");
+            Map<String,Object> in;
+            try { in = Json.readFields(ex.getRequestBody(), fields); }
+            catch (IOException e) { throw new BadReq("body must be a JSON object"); }
+            limitPrincipal(limits, in);
+            String requestId = null;
+            if (key != null) {
+                requestId = requestScope(ex.getHttpContext().getPath(), in, key);
+                in.put("requestHash", requestHash(in, fields));
+            }
+            out = fn.handle(in, requestId);
         } catch (Exception e) {
-            e.printStackTrace();
-            respond(ex, 500, Map.of("error", e.toString()));
+            out = CompletableFuture.failedFuture(e);
+        }
+        complete(ex, out, start);
+    }
+
+    // An Idempotency-Key is scoped to the endpoint and to the principal the body names, so
+    // another caller reusing the key never gets this caller's answer.
+    private static String requestScope(String path, Map<String,Object> in, String key) {
+        for (String f : SCOPE_FIELDS) {
+            Object v = in.get(f);
+            if (v != null) return path + ":" + f + "=" + (f.equals("email") ? norm(String.valueOf(v)) : String.valueOf(v)) + ":" + key;
+        }
+        return path + "::" + key;
+    }
+
+    // Fingerprint of the request fields the claim is stored with; the module answers a repeat
+    // whose fingerprint differs with REQUEST_MISMATCH (422). Secrets are left out so no digest of
+    // them is retained; they are checked again on every attempt anyway.
+    private static String requestHash(Map<String,Object> in, String[] fields) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String f : fields) {
+                if (UNHASHED_FIELDS.contains(f)) continue;
+                Object v = in.get(f);
+                String text = v == null ? "" : f.equals("email") ? norm(String.valueOf(v)) : String.valueOf(v);
+                md.update((f + "=" + text + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            return Base64.getEncoder().withoutPadding().encodeToString(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
     }
 
     private static void handleGet(HttpExchange ex, QueryHandler fn) throws IOException {
         if (!"GET".equalsIgnoreCase(ex.getRequestMethod())) { methodNotAllowed(ex, "GET"); return; }
+        Limits limits = Limits.of(ex);
+        if (!allowIp(ex, limits)) return;
+        if (!admit(ex)) return;
+        long start = System.nanoTime();
+        CompletionStage<Map<String,Object>> out;
         try {
             Map<String,String> q = parseQuery(ex.getRequestURI().getQuery());
-            Map<String,Object> out = fn.handle(q);
-            respond(ex, 200, out);
-        } catch (BadReq br) {
-            respond(ex, 400, Map.of("error", br.getMessage()));
+            limitPrincipal(limits, q);
+            out = fn.handle(q);
         } catch (Exception e) {
-            e.printStackTrace();
-            respond(ex, 500, Map.of("error", e.toString()));
+            out = CompletableFuture.failedFuture(e);
+        }
+        complete(ex, out, start);
+    }
+
+    // runs before admission, so refused requests cost neither a permit nor a body parse
+    private static boolean allowIp(HttpExchange ex, Limits limits) throws IOException {
+        if (limits.ip == null) return true;
+        long wait = Settings.LIMITER.tryAcquire(RateLimiter.key(limits.ipSeed, clientIp(ex)), limits.ip, System.currentTimeMillis());
+        if (wait == 0) return true;
+        Settings.LIMITED_IP.increment();
+        ex.getResponseHeaders().set("Retry-After", Long.toString(retryAfterSeconds(wait)));
+        respond(ex, 429, Map.of("error", "too many requests, retry later"));
+        return false;
+    }
+
+    private static void limitPrincipal(Limits limits, Map<String,?> in) {
+        if (limits.principal == null) return;
+        for (String f : PRINCIPAL_FIELDS) {
+            Object v = in.get(f);
+            if (v == null) continue;
+            String principal = f.equals("email") ? norm(String.valueOf(v)) : String.valueOf(v);
+            long wait = Settings.LIMITER.tryAcquire(RateLimiter.key(limits.principalSeed, principal), limits.principal, System.currentTimeMillis());
+            if (wait > 0) {
+                Settings.LIMITED_PRINCIPAL.increment();
+                throw new Limited(wait);
+            }
+            return;
         }
     }
 
+    // Every proxy appends the address it was connected from, so the entries a client can forge
+    // are on the left. The client is the entry the outermost trusted proxy appended: with N
+    // trusted proxies, the Nth from the right.
+    private static String clientIp(HttpExchange ex) {
+        if (Settings.TRUST_FORWARDED) {
+            List<String> headers = ex.getRequestHeaders().get("X-Forwarded-For");
+            if (headers != null) {
+                List<String> hops = new ArrayList<>();
+                for (String h : headers) {
+                    for (String part : h.split(",")) {
+                        if (!part.isBlank()) hops.add(part.trim());
+                    }
+                }
+                if (!hops.isEmpty()) return hops.get(Math.max(0, hops.size() - Settings.TRUSTED_PROXIES));
+            }
+        }
+        return ex.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    private static long retryAfterSeconds(long waitMillis) {
+        return Math.max(1, (waitMillis + 999) / 1_000);
+    }
+
+    private static boolean admit(HttpExchange ex) throws IOException {
+        if (Settings.IN_FLIGHT.tryAcquire()) return true;
+        ex.getResponseHeaders().set("Retry-After", "1");
+        respond(ex, 503, Map.of("error", "server busy, retry later"));
+        return false;
+    }
+
+    // Answers the exchange once the handler's future settles; the admission permit is held until then.
+    private static void complete(HttpExchange ex, CompletionStage<Map<String,Object>> out, long start) {
+        CompletableFuture<Void> done = out.handle((body, err) -> {
+            int status = 200;
+            try {
+                if (err == null) { respond(ex, 200, body); return null; }
+                Throwable e = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+                if (e instanceof BadReq) {
+                    respond(ex, status = 400, Map.of("error", e.getMessage()));
+                } else if (e instanceof Limited) {
+                    ex.getResponseHeaders().set("Retry-After", Long.toString(retryAfterSeconds(((Limited) e).waitMillis)));
+                    respond(ex, status = 429, Map.of("error", "too many requests, retry later"));
+                } else if (e instanceof Conflict) {
+                    ex.getResponseHeaders().set("Retry-After", "1");
+                    respond(ex, status = 409, Map.of("error", e.getMessage()));
+                } else if (e instanceof Unprocessable) {
+                    respond(ex, status = 422, Map.of("error", e.getMessage()));
+                } else if (e instanceof RejectedExecutionException) {
+                    ex.getResponseHeaders().set("Retry-After", "1");
+                    respond(ex, status = 503, Map.of("error", e.getMessage()));
+                } else {
+                    e.printStackTrace();
+                    respond(ex, status = 500, Map.of("error", e.toString()));
+                }
+            } catch (IOException io) {
+                ex.close();
+            } finally {
+                Settings.IN_FLIGHT.release();
+                Metrics.HTTP.get(ex.getHttpContext().getPath()).record(status, start);
+            }
+            return null;
+        }).toCompletableFuture();
+        if (Settings.BLOCKING) done.join();
+    }
+
+    // the body is encoded into a per-thread buffer and written straight to the exchange
     private static void respond(HttpExchange ex, int status, Object body) throws IOException {
         byte[] bytes;
-        try { bytes = Json.M.writeValueAsBytes(body); }
-        catch (Exception e) { bytes = ("{\"error\":\"" + e.getMessage() + "\"}").getBytes(StandardCharsets.UTF_8); status = 500; }
+        int len;
+        try {
+            Json.Buffer b = Json.encode(body);
+            bytes = b.array();
+            len = b.size();
+        } catch (Exception e) {
+            bytes = ("{\"error\":\"" + e.getMessage() + "\"}").getBytes(StandardCharsets.UTF_8);
+            len = bytes.length;
+            status = 500;
+        }
         ex.getResponseHeaders().set("Content-Type", "application/json");
-        ex.sendResponseHeaders(status, bytes.length);
-        ex.getResponseBody().write(bytes);
+        ex.sendResponseHeaders(status, len);
+        ex.getResponseBody().write(bytes, 0, len);
         ex.close();
     }
 
@@ -243,18 +728,12 @@ public class HttpMain {
         return java.net.URLDecoder.decode(s, StandardCharsets.UTF_8);
     }
 
-    private static Object waitFor(Duration timeout, SupplierThrowing<Object> sup) {
-        long deadline = System.nanoTime() + timeout.toNanos();
-        Object v = sup.get();
-        while (v == null && System.nanoTime() < deadline) {
-            try { Thread.sleep(100); } catch (InterruptedException ignored) {}
-            v = sup.get();
-        }
-        return v;
-    }
-
-    @FunctionalInterface interface SupplierThrowing<T> { T get(); }
-
     private static class BadReq extends RuntimeException { BadReq(String m) { super(m); } }
+    private static class Conflict extends RuntimeException { Conflict(String m) { super(m); } }
+    private static class Unprocessable extends RuntimeException { Unprocessable(String m) { super(m); } }
+    private static class Limited extends RuntimeException {
+        final long waitMillis;
+        Limited(long waitMillis) { super("rate limited", null, false, false); this.waitMillis = waitMillis; }
+    }
     private static void require(boolean ok, String msg) { if (!ok) throw new BadReq(msg); }
-}
\ No newline at end of file
+}
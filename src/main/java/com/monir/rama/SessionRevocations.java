@@ -0,0 +1,137 @@
+package com.monir.rama;
+
+import com.monir.rama.util.AuthFns;
+import com.monir.rama.util.Config;
+import com.monir.rama.util.Metrics;
+import com.monir.rama.util.SessionTokens.Claims;
+import com.rpl.rama.Depot;
+import com.rpl.rama.DepotPartitionInfo;
+import com.rpl.rama.cluster.ClusterManagerBase;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// The HTTP tier's copy of recent revocations, so signed session tokens (see SessionTokens) can
+// be checked without a cluster call. It tails every *auth_events partition from where the
+// depot ended when it started: LogoutRequested revokes one session, LogoutAllRequested every
+// session of the user issued before it. An entry is only kept as long as a token it covers
+// could still be unexpired, so the set stays small.
+//
+// Tokens issued before the tail started (less a clock-skew allowance) cannot be vouched for
+// and are reported as unknown; callers fall back to checkSession for those.
+public class SessionRevocations implements AutoCloseable {
+
+    private final Depot depot;
+    private final long[] offsets;
+    private final long pollMillis;
+    private final long tokenTtlMillis;
+    private final long readyAt;
+
+    // sessionId → when the entry may be dropped; userId → revocation time
+    private final Map<UUID, Long> sessions = new ConcurrentHashMap<>();
+    private final Map<UUID, Long> users = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public SessionRevocations(Depot depot, int numPartitions, long pollMillis, long tokenTtlMillis, long skewMillis) throws Exception {
+        this.depot = depot;
+        this.offsets = new long[numPartitions];
+        for (int p = 0; p < numPartitions; p++) offsets[p] = depot.getPartitionInfo(p).getEndOffset();
+        this.pollMillis = pollMillis;
+        this.tokenTtlMillis = tokenTtlMillis;
+        this.readyAt = System.currentTimeMillis() + skewMillis;
+        Metrics.gauge("auth_session_revocations", "Revocation entries held for token checks", "kind=\"session\"", () -> sessions.size());
+        Metrics.gauge("auth_session_revocations", null, "kind=\"user\"", () -> users.size());
+    }
+
+    // Tails every partition; the count comes from the module itself (see AuthModule.taskCount).
+    public static SessionRevocations configured(ClusterManagerBase cluster) throws Exception {
+        return new SessionRevocations(
+                cluster.clusterDepot(AuthModule.class.getName(), "*auth_events"),
+                AuthModule.taskCount(cluster),
+                Config.longVal("auth.session.revocationPollMillis", 200),
+                tokenTtlMillis(),
+                Config.longVal("auth.session.tokenClockSkewMillis", 5_000));
+    }
+
+    // tokens are short-lived by default so a session's idle timeout still bites
+    public static long tokenTtlMillis() {
+        return Config.longVal("auth.session.tokenTtlMillis", AuthModule.sessionIdleTtlMillis());
+    }
+
+    public SessionRevocations start() {
+        thread = new Thread(this::run, "session-revocations");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    // TRUE revoked, FALSE not revoked, null when the token predates the tail
+    public Boolean isRevoked(Claims c) {
+        if (sessions.containsKey(c.sessionId)) return true;
+        Long userRevokedAt = users.get(c.userId);
+        if (userRevokedAt != null && c.issuedAt <= userRevokedAt) return true;
+        return c.issuedAt < readyAt ? null : false;
+    }
+
+    private void run() {
+        while (running) {
+            boolean progressed = false;
+            for (int p = 0; p < offsets.length; p++) {
+                try {
+                    progressed |= drain(p);
+                } catch (Exception e) {
+                    System.err.println("session revocations: partition " + p + ": " + e);
+                }
+            }
+            prune(System.currentTimeMillis());
+            if (!progressed) {
+                try { Thread.sleep(pollMillis); } catch (InterruptedException e) { return; }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean drain(int p) throws Exception {
+        DepotPartitionInfo info = depot.getPartitionInfo(p);
+        long from = Math.max(offsets[p], info.getStartOffset());
+        long to = Math.min(info.getEndOffset(), from + 1_000);
+        if (from >= to) return false;
+        long now = System.currentTimeMillis();
+        for (Object r : depot.read(p, from, to)) {
+            if (!(r instanceof Map)) continue;
+            Map<String,Object> record = (Map<String,Object>) r;
+            Object at = record.get("appendedAt");
+            long when = at instanceof Number ? ((Number) at).longValue() : now;
+            for (Map<String,Object> e : AuthFns.unbatch(record)) apply(e, when);
+        }
+        offsets[p] = to;
+        return true;
+    }
+
+    private void apply(Map<String,Object> e, long when) {
+        Object type = e.get("type");
+        if ("LogoutRequested".equals(type) && e.get("sessionId") instanceof UUID) {
+            sessions.put((UUID) e.get("sessionId"), when + tokenTtlMillis);
+        } else if ("LogoutAllRequested".equals(type) && e.get("userId") instanceof UUID) {
+            users.merge((UUID) e.get("userId"), when, Math::max);
+        }
+    }
+
+    private void prune(long now) {
+        sessions.values().removeIf(dropAt -> dropAt <= now);
+        users.values().removeIf(revokedAt -> revokedAt + tokenTtlMillis <= now);
+    }
+
+    @Override
+    public void close() throws Exception {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+}
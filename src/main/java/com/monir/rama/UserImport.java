@@ -0,0 +1,286 @@
+package com.monir.rama;
+
+import com.monir.rama.util.AuthFns;
+import com.monir.rama.util.Config;
+import com.monir.rama.util.Ids;
+import com.monir.rama.util.Json;
+import com.rpl.rama.Depot;
+import com.rpl.rama.QueryTopologyClient;
+import com.rpl.rama.cluster.ClusterManagerBase;
+import com.rpl.rama.cluster.RamaClusterManager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Streams legacy accounts with pre-hashed credentials into *user_import. The registration
+// stream writes $$usersById, $$emailIndex and $$credsByUser from it, with no OTP and no mail.
+//
+// Input is JSONL ({"email","name","hash","algo","salt","params","verified","createdAt","userId"},
+// only email required) or CSV with a header row naming the same columns, where params is given
+// as an "iterations" column. Users go out in Batch records of auth.import.batchSize with up to
+// auth.import.inFlight appends outstanding; each batch lands on one partition and its users
+// hop to their own.
+//
+// The checkpoint file holds the first line not yet known to be imported: every line before it
+// has been acked. A rerun resumes there; lines after it that did get in are skipped by the
+// module because their email already exists. Accounts without a userId get one minted here, so
+// a record Rama retries writes the same row. A legacy userId that already belongs to another
+// account is not imported; those are listed at the end of the run.
+//   java -cp auth-service.jar com.monir.rama.UserImport --auth.import.file=users.jsonl \
+//        --auth.cluster.conductorHost=...
+public class UserImport {
+
+    private final Depot depot;
+    private final QueryTopologyClient<Map> collisions;
+    private final Path file;
+    private final Path checkpointFile;
+    private final int batchSize;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final long progressMillis;
+
+    // first line of every batch not yet acked
+    private final NavigableSet<Long> pending = new ConcurrentSkipListSet<>();
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private long rejected;
+
+    public UserImport(Depot depot, QueryTopologyClient<Map> collisions, Path file, Path checkpointFile,
+                      int batchSize, int maxInFlight, long progressMillis) {
+        this.depot = depot;
+        this.collisions = collisions;
+        this.file = file;
+        this.checkpointFile = checkpointFile;
+        this.batchSize = batchSize;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.maxInFlight = maxInFlight;
+        this.progressMillis = progressMillis;
+    }
+
+    public static UserImport configured(ClusterManagerBase cluster) {
+        Path file = Path.of(Config.str("auth.import.file", "users.jsonl"));
+        return new UserImport(
+                cluster.clusterDepot(AuthModule.class.getName(), "*user_import"),
+                cluster.clusterQuery(AuthModule.class.getName(), "getImportCollisions"),
+                file,
+                Path.of(Config.str("auth.import.checkpointFile", file + ".checkpoint")),
+                Config.intVal("auth.import.batchSize", 500),
+                Config.intVal("auth.import.inFlight", 32),
+                Config.longVal("auth.import.progressMillis", 5_000));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config.init(args);
+        String conductor = Config.str("auth.cluster.conductorHost", null);
+        try (RamaClusterManager cluster = conductor == null
+                ? RamaClusterManager.open()
+                : RamaClusterManager.open(Map.of("conductor.host", conductor))) {
+            configured(cluster).run();
+        }
+    }
+
+    public void run() throws Exception {
+        long resumeAt = readCheckpoint();
+        boolean csv = file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv");
+        long start = System.nanoTime();
+        long nextReport = start + TimeUnit.MILLISECONDS.toNanos(progressMillis);
+        if (resumeAt > 1) System.out.println("resuming " + file + " at line " + resumeAt);
+
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String[] header = csv ? parseCsv(in.readLine()) : null;
+            long line = csv ? 1 : 0;
+            long batchStart = -1;
+            List<Map<String,Object>> batch = new ArrayList<>(batchSize);
+            String text;
+            while ((text = in.readLine()) != null) {
+                line++;
+                if (line < resumeAt || text.isBlank()) continue;
+                Map<String,Object> user;
+                try {
+                    user = csv ? fromCsv(header, parseCsv(text)) : fromJson(text);
+                } catch (RuntimeException | IOException e) {
+                    if (rejected++ < 20) System.err.println("line " + line + ": " + e.getMessage());
+                    continue;
+                }
+                if (batch.isEmpty()) batchStart = line;
+                batch.add(user);
+                if (batch.size() == batchSize) {
+                    send(batch, batchStart, line + 1);
+                    batch = new ArrayList<>(batchSize);
+                }
+                if (System.nanoTime() >= nextReport) {
+                    report(start, line);
+                    nextReport = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(progressMillis);
+                }
+            }
+            if (!batch.isEmpty()) send(batch, batchStart, line + 1);
+            // wait for the tail, then record the end of the file
+            inFlight.acquire(maxInFlight);
+            checkFailure();
+            advanceCheckpoint(line + 1, true);
+            report(start, line);
+            reportCollisions();
+            System.out.println("import of " + file + " complete");
+        }
+    }
+
+    private void send(List<Map<String,Object>> users, long firstLine, long nextLine) throws Exception {
+        inFlight.acquire();
+        checkFailure();
+        pending.add(firstLine);
+        Map<String,Object> record = new HashMap<>();
+        record.put("type", "Batch");
+        record.put("events", users);
+        record.put("appendedAt", System.currentTimeMillis());
+        depot.appendAsync(record).whenComplete((acked, err) -> {
+            if (err != null) {
+                failure.compareAndSet(null, err);
+            } else {
+                imported.addAndGet(users.size());
+                pending.remove(firstLine);
+                try {
+                    advanceCheckpoint(nextLine, false);
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+            inFlight.release();
+        });
+    }
+
+    // a failed append stops the run; the checkpoint still points before the failed batch
+    private void checkFailure() throws Exception {
+        Throwable t = failure.get();
+        if (t != null) throw new IOException("append failed; rerun to resume from the checkpoint", t);
+    }
+
+    private void report(long startNanos, long line) {
+        double secs = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        long n = imported.get();
+        System.out.printf("line %d: %d users acked, %.0f users/s, %d in flight, %d rejected%n",
+                line, n, n / secs, maxInFlight - inFlight.availablePermits(), rejected);
+    }
+
+    // kept by the module across runs, so a rerun lists the earlier runs' collisions too
+    private void reportCollisions() {
+        Map<?,?> refused = collisions.invoke();
+        if (refused.isEmpty()) return;
+        System.err.println(refused.size() + " account(s) not imported: their legacy userId already belongs to another account");
+        int shown = 0;
+        for (Map.Entry<?,?> e : refused.entrySet()) {
+            if (shown++ == 100) { System.err.println("  ... and " + (refused.size() - 100) + " more"); break; }
+            System.err.println("  " + Ids.toText((UUID) e.getKey()) + " " + e.getValue());
+        }
+    }
+
+    // ---------- input ----------
+
+    private static final Set<String> FIELDS = Set.of("email", "name", "hash", "algo", "salt", "params",
+            "verified", "createdAt", "userId");
+
+    @SuppressWarnings("unchecked")
+    private static Map<String,Object> fromJson(String text) throws IOException {
+        Map<String,Object> in = Json.M.readValue(text, Map.class);
+        Map<String,Object> u = new HashMap<>();
+        for (Map.Entry<String,Object> e : in.entrySet()) {
+            if (FIELDS.contains(e.getKey()) && e.getValue() != null) u.put(e.getKey(), e.getValue());
+        }
+        return normalize(u);
+    }
+
+    private static Map<String,Object> fromCsv(String[] header, String[] cols) {
+        Map<String,Object> u = new HashMap<>();
+        Map<String,Object> params = new HashMap<>();
+        for (int i = 0; i < header.length && i < cols.length; i++) {
+            String k = header[i], v = cols[i];
+            if (v.isEmpty()) continue;
+            if (k.equals("iterations")) params.put("iterations", Long.parseLong(v));
+            else if (FIELDS.contains(k)) u.put(k, v);
+        }
+        if (!params.isEmpty()) u.put("params", params);
+        return normalize(u);
+    }
+
+    // types as the module stores them: UUID ids, Long times, Boolean flags, String credentials
+    private static Map<String,Object> normalize(Map<String,Object> u) {
+        Object email = u.get("email");
+        if (!(email instanceof String) || ((String) email).isBlank()) throw new IllegalArgumentException("email is required");
+        // the address is mailed to later, so it is held to the same rule as /api/register
+        u.put("email", ((String) email).trim());
+        if (!AuthFns.isValidEmail((String) u.get("email"))) throw new IllegalArgumentException("email is not a valid address");
+        u.put("type", "UserImported");
+        u.put("userId", u.get("userId") != null ? Ids.parse(String.valueOf(u.get("userId"))) : Ids.newId());
+        if (u.get("createdAt") != null) u.put("createdAt", Long.parseLong(String.valueOf(u.get("createdAt"))));
+        if (u.get("verified") != null) u.put("verified", Boolean.parseBoolean(String.valueOf(u.get("verified"))));
+        for (String k : new String[] { "name", "hash", "algo", "salt" }) {
+            if (u.get(k) != null) u.put(k, String.valueOf(u.get(k)));
+        }
+        if (u.get("params") != null && !(u.get("params") instanceof Map)) throw new IllegalArgumentException("params must be an object");
+        return u;
+    }
+
+    // RFC 4180 fields: commas inside double quotes, "" for a literal quote
+    static String[] parseCsv(String line) {
+        if (line == null) throw new IllegalArgumentException("CSV input needs a header row");
+        List<String> out = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') { cur.append('"'); i++; }
+                else if (c == '"') quoted = false;
+                else cur.append(c);
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                out.add(cur.toString().trim());
+                cur.setLength(0);
+            } else {
+                cur.append(c);
+            }
+        }
+        out.add(cur.toString().trim());
+        return out.toArray(new String[0]);
+    }
+
+    // ---------- checkpoint ----------
+
+    private long readCheckpoint() throws IOException {
+        if (!Files.exists(checkpointFile)) return 1;
+        return Long.parseLong(Files.readString(checkpointFile).trim());
+    }
+
+    private long checkpoint;
+    private long checkpointWrittenAt;
+
+    // Everything before the oldest outstanding batch is in; with none outstanding, everything
+    // up to ackedUpTo. Acks complete out of order, so the checkpoint only moves forward, and it
+    // is written at most once a second until the final write.
+    private synchronized void advanceCheckpoint(long ackedUpTo, boolean force) throws IOException {
+        Long oldest = pending.isEmpty() ? null : pending.first();
+        checkpoint = Math.max(checkpoint, oldest != null ? oldest : ackedUpTo);
+        long now = System.currentTimeMillis();
+        if (!force && now - checkpointWrittenAt < 1_000) return;
+        checkpointWrittenAt = now;
+        writeCheckpoint(checkpoint);
+    }
+
+    // write-then-rename so a crash never leaves a torn checkpoint
+    private void writeCheckpoint(long nextLine) throws IOException {
+        Path tmp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp)) { w.write(Long.toString(nextLine)); }
+        Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
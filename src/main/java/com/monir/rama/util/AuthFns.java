@@ -1,17 +1,16 @@
 
 package com.monir.rama.util;
 
-import java.security.NoSuchAlgorithmException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
-import java.security.spec.InvalidKeySpecException;
 import java.time.Duration;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
-
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
+import java.util.concurrent.CompletableFuture;
 
 public final class AuthFns {
     private AuthFns(){}
@@ -20,11 +19,32 @@ public final class AuthFns {
         return s == null ? null : s.trim().toLowerCase();
     }
 
-    public static String newId() {
-        return UUID.randomUUID().toString().replace("-", "");
+    // Addresses end up in SMTP commands and mail headers (see MailTransport), so beyond the
+    // usual local@domain shape nothing that could end a line or an angle-bracket address passes:
+    // no control characters, spaces, <, >, quotes, commas or semicolons, and at most 254 chars.
+    public static boolean isValidEmail(String s) {
+        if (s == null || s.length() < 3 || s.length() > 254) return false;
+        int at = s.indexOf('@');
+        if (at <= 0 || at != s.lastIndexOf('@') || at == s.length() - 1 || s.indexOf('.', at) < 0) return false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c <= ' ' || c == 0x7F || "<>()[]\\,;:\"".indexOf(c) >= 0) return false;
+        }
+        return true;
+    }
+
+    // A "Batch" record (see BatchingAppender) carries several events; anything else is one event.
+    @SuppressWarnings("unchecked")
+    public static List<Map<String,Object>> unbatch(Map<String,Object> in) {
+        if ("Batch".equals(in.get("type"))) return (List<Map<String,Object>>) in.get("events");
+        return List.of(in);
+    }
+
+    public static UUID orNewId(UUID id) {
+        return id != null ? id : Ids.newId();
     }
 
-    public static Map<String,Object> buildUser(String userId, String emailLower, String name, long now) {
+    public static Map<String,Object> buildUser(UUID userId, String emailLower, String name, long now) {
         Map<String,Object> m = new HashMap<>();
         m.put("userId", userId);
         m.put("email", emailLower);
@@ -34,22 +54,9 @@ public final class AuthFns {
         return m;
     }
 
-    public static Map<String,Object> markVerified(Map<String,Object> user) {
-        if (user == null) return null;
-        user.put("verified", Boolean.TRUE);
-        return user;
-    }
-
     // PBKDF2 helpers
+    private static final SecureRandom RNG = new SecureRandom();
     private static String b64(byte[] b){ return Base64.getEncoder().encodeToString(b); }
-    private static byte[] pbkdf2Bytes(char[] password, byte[] salt, int iterations, int dkLen) {
-        try {
-            PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, dkLen*8);
-            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-            throw new RuntimeException(e);
-        }
-    }
     private static boolean constEq(String a, String b) {
         if (a == null || b == null) return a == b;
         if (a.length() != b.length()) return false;
@@ -58,41 +65,75 @@ public final class AuthFns {
         return r == 0;
     }
 
-    // OTP as Map to avoid Nippy custom serializer
-    public static Map<String,Object> newOtpMap(int digits, Duration ttl) {
+    // OTP as Map to avoid Nippy custom serializer. "otp" is what gets stored (hash only);
+    // "code" is the plaintext, which only leaves the module sealed inside the email message.
+    public static Map<String,Object> issueOtp(int digits, Duration ttl) {
         // generate numeric code
-        SecureRandom rng = new SecureRandom();
         StringBuilder code = new StringBuilder(digits);
-        for (int i=0;i<digits;i++) code.append(rng.nextInt(10));
+        for (int i=0;i<digits;i++) code.append(RNG.nextInt(10));
         byte[] salt = new byte[16];
-        rng.nextBytes(salt);
+        RNG.nextBytes(salt);
         String saltB64 = b64(salt);
-        String hashB64 = b64(pbkdf2Bytes(code.toString().toCharArray(), salt, 30_000, 32));
+        String hashB64 = b64(Hashing.pbkdf2(Hashing.OTP_ALGORITHM, code.toString().toCharArray(), salt, Hashing.OTP_ITERATIONS, 32));
         long expiresAt = System.currentTimeMillis() + ttl.toMillis();
         Map<String,Object> m = new HashMap<>();
         m.put("hashB64", hashB64);
         m.put("saltB64", saltB64);
+        m.put("algo", Hashing.OTP_ALGORITHM);
+        m.put("iterations", (long) Hashing.OTP_ITERATIONS);
         m.put("expiresAtMillis", expiresAt);
-        m.put("attempts", 0);
-        // DO NOT store plaintext; you could send it out-of-band (mail/SMS). Here we only return masked for demo.
-        return m;
+        m.put("attempts", 0L);
+        Map<String,Object> issued = new HashMap<>();
+        issued.put("otp", m);
+        issued.put("code", code.toString());
+        return issued;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map<String,Object> newOtpMap(int digits, Duration ttl) {
+        return (Map<String,Object>) issueOtp(digits, ttl).get("otp");
     }
 
-    public static Map<String,Object> emailOtpRequested(String userId, String email, Map<String,Object> otp) {
+    // consumed by EmailWorker; the code is sealed with the shared mail key (see OtpSeal)
+    public static Map<String,Object> emailOtpRequested(UUID userId, String email, String code, Map<String,Object> otp) {
         Map<String,Object> m = new HashMap<>();
         m.put("type", "EmailOtpRequested");
+        m.put("messageId", Ids.newId());
         m.put("userId", userId);
         m.put("email", email);
-        m.put("maskedOtp", "******");
+        m.put("otpSealed", OtpSeal.seal(code));
+        m.put("expiresAtMillis", otp.get("expiresAtMillis"));
+        return m;
+    }
+
+    // imported accounts keep their legacy creation time and verified flag when given
+    public static Map<String,Object> importedUser(Map<String,Object> e, UUID userId, String emailLower) {
+        Object createdAt = e.get("createdAt");
+        Map<String,Object> m = buildUser(userId, emailLower, (String) e.get("name"),
+                createdAt instanceof Number ? ((Number) createdAt).longValue() : System.currentTimeMillis());
+        m.put("verified", Boolean.TRUE.equals(e.get("verified")));
         return m;
     }
 
+    // the imported userId already holds an account for another email
+    public static boolean importCollides(Map<String,Object> prior, String emailLower) {
+        return prior != null && !emailLower.equals(prior.get("email"));
+    }
+
+    // null when the account comes without a password hash
+    public static Map<String,Object> importedCred(Map<String,Object> e) {
+        if (e.get("hash") == null || e.get("algo") == null) return null;
+        return buildCred((String) e.get("hash"), (String) e.get("algo"), (String) e.get("salt"),
+                e.get("params"), System.currentTimeMillis());
+    }
+
+    // salt and params are optional; absent keys rather than nulls keep the fixed-key schema happy
     public static Map<String,Object> buildCred(String hash, String algo, String salt, Object params, long ts) {
         Map<String,Object> m = new HashMap<>();
         m.put("hash", hash);
         m.put("algo", algo);
-        m.put("salt", salt);
-        m.put("params", params);
+        if (salt != null) m.put("salt", salt);
+        if (params != null) m.put("params", params);
         m.put("ts", ts);
         return m;
     }
@@ -101,11 +142,56 @@ public final class AuthFns {
         return principal + "|" + ip;
     }
 
-    public static Long bump(Long cur) {
-        return cur == null ? 1L : cur + 1L;
+    // Login-failure windows. One failure is counted under three keys so that spraying
+    // one account from many IPs, or many accounts from one IP, is also caught.
+    public static List<String> failureKeys(String principal, String ip) {
+        return List.of(principalIpKey(principal, ip), principalKey(principal), ipKey(ip));
+    }
+
+    // one failure under one counter, for counting it only once; null for failures without an id
+    public static String failureMark(String fkey, UUID failureId) {
+        return failureId == null ? null : fkey + "#" + failureId;
+    }
+
+    public static String principalIpKey(String principal, String ip) {
+        return "pi:" + key(principal, ip);
+    }
+
+    public static String principalKey(String principal) {
+        return "p:" + principal;
+    }
+
+    public static String ipKey(String ip) {
+        return "ip:" + ip;
+    }
+
+    public static long bucketOf(long now, long bucketMillis) {
+        return now - Math.floorMod(now, bucketMillis);
+    }
+
+    // start of the oldest bucket still inside a window of n buckets
+    public static long windowStart(long now, long bucketMillis, int n) {
+        return bucketOf(now, bucketMillis) - (n - 1) * bucketMillis;
+    }
+
+    public static long sumCounts(Map<Long,Long> buckets) {
+        if (buckets == null) return 0L;
+        long sum = 0;
+        for (Long c : buckets.values()) sum += c;
+        return sum;
+    }
+
+    public static boolean overLimit(String failureKey, long count, long maxPerPrincipalIp, long maxPerPrincipal, long maxPerIp) {
+        if (failureKey.startsWith("pi:")) return count >= maxPerPrincipalIp;
+        if (failureKey.startsWith("p:"))  return count >= maxPerPrincipal;
+        return count >= maxPerIp;
     }
 
-    public static Map<String,Object> buildSession(String sid, String uid, String device, String ip, long now) {
+    public static boolean isZero(Number n) {
+        return n == null || n.longValue() == 0L;
+    }
+
+    public static Map<String,Object> buildSession(UUID sid, UUID uid, String device, String ip, long now) {
         Map<String,Object> m = new HashMap<>();
         m.put("sessionId", sid);
         m.put("userId", uid);
@@ -116,20 +202,160 @@ public final class AuthFns {
         return m;
     }
 
-    public static Map<String,Object> revoke(Map<String,Object> sess) {
-        if (sess == null) return null;
-        sess.put("revoked", Boolean.TRUE);
+    public static Map<String,Object> sessionRef(Map<String,Object> sess) {
+        Map<String,Object> m = new HashMap<>();
+        if (sess.get("device") != null) m.put("device", sess.get("device"));
+        if (sess.get("ip") != null) m.put("ip", sess.get("ip"));
+        m.put("createdAt", sess.get("createdAt"));
+        return m;
+    }
+
+    public static Map<String,Object> logoutAllRequested(UUID userId) {
+        Map<String,Object> m = new HashMap<>();
+        m.put("type", "LogoutAllRequested");
+        m.put("userId", userId);
+        return m;
+    }
+
+    // expiry for a session seen at seenAt: the earlier of the idle and the absolute deadline
+    public static long expiresAt(Map<String,Object> sess, long seenAt, long idleTtlMillis, long absoluteTtlMillis) {
+        long createdAt = ((Number) sess.get("createdAt")).longValue();
+        return Math.min(seenAt + idleTtlMillis, createdAt + absoluteTtlMillis);
+    }
+
+    public static Map<String,Object> withTtl(Map<String,Object> sess, long idleTtlMillis, long absoluteTtlMillis) {
+        long createdAt = ((Number) sess.get("createdAt")).longValue();
+        sess.put("lastSeen", createdAt);
+        sess.put("expiresAt", expiresAt(sess, createdAt, idleTtlMillis, absoluteTtlMillis));
         return sess;
     }
 
-    public static boolean checkOtp(Map<String,Object> otp, String plain) {
-        if (otp == null) return false;
+    public static long expiryBucket(Map<String,Object> sess, long bucketMillis) {
+        return bucketOf(((Number) sess.get("expiresAt")).longValue(), bucketMillis);
+    }
+
+    public static boolean isExpired(Map<String,Object> sess, long now) {
+        Object exp = sess.get("expiresAt");
+        return exp != null && ((Number) exp).longValue() <= now;
+    }
+
+    public static Map<String,Object> liveSession(Map<String,Object> sess, long now) {
+        if (sess == null || Boolean.TRUE.equals(sess.get("revoked")) || isExpired(sess, now)) return null;
+        return sess;
+    }
+
+    public static boolean isSweepable(Map<String,Object> sess, long now) {
+        return sess != null && (Boolean.TRUE.equals(sess.get("revoked")) || isExpired(sess, now));
+    }
+
+    // remembered request (see AuthModule.claimRequest); "result" is filled in once it is known
+    public static Map<String,Object> pendingRequest(long expiresAt, UUID attemptId, String requestHash) {
+        Map<String,Object> m = new HashMap<>();
+        m.put("expiresAt", expiresAt);
+        if (attemptId != null) m.put("attemptId", attemptId);
+        if (requestHash != null) m.put("requestHash", requestHash);
+        return m;
+    }
+
+    // ack-returned to a repeat whose request differs from the one that claimed its requestId
+    public static final String REQUEST_MISMATCH = "idempotency-key-mismatch";
+
+    public static boolean sameRequest(Map<String,Object> prior, String requestHash) {
+        return Objects.equals(prior.get("requestHash"), requestHash);
+    }
+
+    // a pending claim taken by this very append: Rama is retrying the record after a failure
+    public static boolean isRetryOf(Map<String,Object> prior, UUID attemptId) {
+        return attemptId != null && attemptId.equals(prior.get("attemptId"));
+    }
+
+    public static Map<String,Object> liveRequest(Map<String,Object> req, long now) {
+        if (req == null || ((Number) req.get("expiresAt")).longValue() <= now) return null;
+        return req;
+    }
+
+    public static boolean isOtpExpired(Map<String,Object> otp) {
         long expires = ((Number)otp.get("expiresAtMillis")).longValue();
-        if (System.currentTimeMillis() > expires) return false;
+        return System.currentTimeMillis() > expires;
+    }
+
+    // "ok" when the OTP may be checked, else why not: "missing", "expired" or "exhausted"
+    public static String otpGate(Map<String,Object> otp, int maxAttempts) {
+        if (otp == null) return "missing";
+        if (isOtpExpired(otp)) return "expired";
+        Object attempts = otp.get("attempts");
+        if (attempts != null && ((Number) attempts).intValue() >= maxAttempts) return "exhausted";
+        return "ok";
+    }
+
+    public static boolean checkOtp(Map<String,Object> otp, String plain) {
+        if (otp == null || isOtpExpired(otp)) return false;
         String saltB64 = (String) otp.get("saltB64");
         String targetHash = (String) otp.get("hashB64");
         byte[] salt = Base64.getDecoder().decode(saltB64);
-        String candHash = b64(pbkdf2Bytes(plain.toCharArray(), salt, 30_000, 32));
+        // OTPs stored before cost settings existed were PBKDF2-SHA256 × 30k
+        String algo = otp.get("algo") == null ? Hashing.PBKDF2_SHA256 : (String) otp.get("algo");
+        int iterations = otp.get("iterations") == null ? 30_000 : ((Number) otp.get("iterations")).intValue();
+        String candHash = b64(Hashing.pbkdf2(algo, plain.toCharArray(), salt, iterations, 32));
         return constEq(targetHash, candHash);
     }
+
+    // Same check on the hashing pool; misses and expired OTPs answer without hashing.
+    public static CompletableFuture<Boolean> checkOtpAsync(Map<String,Object> otp, String plain) {
+        if (otp == null || isOtpExpired(otp)) return CompletableFuture.completedFuture(false);
+        return Hashing.submit(() -> checkOtp(otp, plain));
+    }
+
+    // the OTP read before an async check is still the stored one (not consumed or replaced since)
+    public static boolean sameOtp(Map<String,Object> then, Map<String,Object> now) {
+        return then != null && now != null && Objects.equals(then.get("hashB64"), now.get("hashB64"));
+    }
+
+    // Passwords set through /api/password are checked server-side when their algo is a PBKDF2
+    // variant SecretKeyFactory knows and params carry "iterations" up to
+    // auth.hash.password.maxIterations; hash and salt are base64. Anything else is "unsupported"
+    // and stays a client-side check.
+    public static boolean canVerifyPassword(Map<String,Object> cred) {
+        if (cred == null || cred.get("hash") == null) return false;
+        Object algo = cred.get("algo");
+        Object params = cred.get("params");
+        if (!(algo instanceof String) || !((String) algo).startsWith("PBKDF2") || !(params instanceof Map)) return false;
+        return supportedIterations(((Map<?,?>) params).get("iterations"));
+    }
+
+    public static boolean supportedIterations(Object iterations) {
+        if (!(iterations instanceof Number)) return false;
+        long n = ((Number) iterations).longValue();
+        return n > 0 && n <= Hashing.MAX_PASSWORD_ITERATIONS;
+    }
+
+    public static boolean checkPassword(Map<String,Object> cred, String plain) {
+        byte[] expected = Base64.getDecoder().decode((String) cred.get("hash"));
+        byte[] salt = cred.get("salt") == null ? new byte[0] : Base64.getDecoder().decode((String) cred.get("salt"));
+        int iterations = ((Number) ((Map<?,?>) cred.get("params")).get("iterations")).intValue();
+        byte[] actual = Hashing.pbkdf2((String) cred.get("algo"), plain.toCharArray(), salt, iterations, expected.length);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    // "ok", "invalid" (no such user, no password or a wrong one) or "unsupported"; runs the
+    // PBKDF2 work on the calling thread
+    public static String passwordVerdict(Map<String,Object> cred, String plain) {
+        if (cred == null) return "invalid";
+        if (!canVerifyPassword(cred)) return "unsupported";
+        try {
+            return checkPassword(cred, plain) ? "ok" : "invalid";
+        } catch (IllegalArgumentException e) {
+            // unknown algorithm or a malformed stored hash
+            return "unsupported";
+        }
+    }
+
+    public static CompletableFuture<String> passwordVerdictAsync(Map<String,Object> cred, String plain) {
+        if (cred == null) return CompletableFuture.completedFuture("invalid");
+        return Hashing.submit(() -> passwordVerdict(cred, plain));
+    }
+
+    public static CompletableFuture<Map<String,Object>> issueOtpAsync(int digits, Duration ttl) {
+        return Hashing.submit(() -> issueOtp(digits, ttl));
+    }
 }
@@ -0,0 +1,165 @@
+package com.monir.rama.util;
+
+import com.rpl.rama.AckLevel;
+import com.rpl.rama.Depot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Coalesces fire-and-forget events bound for one depot into "Batch" records (exploded again
+// by the topology, see AuthFns.unbatch). A window is flushed when it reaches maxBatch events
+// or when its oldest event has waited maxDelay, as one record. The depot places the record by
+// its first event (see DepotKeys); the topology hashPartitions every event, so the others hop
+// to their own partitions. Splitting a window by routing key was tried and left batches of
+// about one event, because nearly every event has its own key. Every caller's future completes
+// when the append holding its event is acknowledged.
+public final class BatchingAppender implements AutoCloseable {
+
+    private static final class Pending {
+        final Map<String,Object> event;
+        final long enqueuedAt = System.nanoTime();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        Pending(Map<String,Object> event) { this.event = event; }
+    }
+
+    private final String name;
+    private final Depot depot;
+    private final AckLevel ackLevel;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Pending> queue;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    // metrics
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder queueDelayNanos = new LongAdder();
+    private final AtomicLong maxBatchSeen = new AtomicLong();
+    private final AtomicLong maxQueueDelayNanos = new AtomicLong();
+
+    public BatchingAppender(String name, Depot depot, AckLevel ackLevel, int maxBatch, long maxDelayMicros, int queueCapacity) {
+        this.name = name;
+        this.depot = depot;
+        this.ackLevel = ackLevel;
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.flusher = new Thread(this::run, "batch-appender-" + name);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public static BatchingAppender configured(String name, Depot depot) {
+        return new BatchingAppender(name, depot,
+                AckLevel.valueOf(Config.str("auth.batch.ackLevel", "ACK")),
+                Config.intVal("auth.batch.maxSize", 256),
+                Config.longVal("auth.batch.maxDelayMicros", 2_000),
+                Config.intVal("auth.batch.queueCapacity", 65_536));
+    }
+
+    // Fails fast with RejectedExecutionException when the queue is full.
+    public CompletableFuture<Void> append(Map<String,Object> event) {
+        Pending p = new Pending(event);
+        if (!queue.offer(p)) p.done.completeExceptionally(new RejectedExecutionException(name + " append queue is full"));
+        return p.done;
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        try {
+            while (running || !queue.isEmpty()) {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                long deadline = first.enqueuedAt + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    queue.drainTo(batch, maxBatch - batch.size());
+                    long wait = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatch || wait <= 0) break;
+                    Pending next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                flush(batch);
+                batch = new ArrayList<>(maxBatch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Exception closed = new RejectedExecutionException(name + " appender is closed");
+        batch.forEach(p -> p.done.completeExceptionally(closed));
+        queue.forEach(p -> p.done.completeExceptionally(closed));
+    }
+
+    private void flush(List<Pending> batch) {
+        long now = System.nanoTime();
+        long oldest = now - batch.get(0).enqueuedAt;
+        events.add(batch.size());
+        maxQueueDelayNanos.accumulateAndGet(oldest, Math::max);
+        for (Pending p : batch) queueDelayNanos.add(now - p.enqueuedAt);
+        append(batch);
+    }
+
+    private void append(List<Pending> group) {
+        batches.increment();
+        maxBatchSeen.accumulateAndGet(group.size(), Math::max);
+
+        Map<String,Object> record;
+        if (group.size() == 1) {
+            record = group.get(0).event;
+        } else {
+            List<Map<String,Object>> evts = new ArrayList<>(group.size());
+            for (Pending p : group) evts.add(p.event);
+            Map<String,Object> m = new HashMap<>();
+            m.put("type", "Batch");
+            m.put("events", evts);
+            record = m;
+        }
+        // read by the topology for the append lag metric (see Metrics.appendLag)
+        record.put("appendedAt", System.currentTimeMillis());
+        CompletableFuture<?> acked;
+        try {
+            acked = depot.appendAsync(record, ackLevel);
+        } catch (Exception e) {
+            acked = CompletableFuture.failedFuture(e);
+        }
+        acked.whenComplete((r, err) -> {
+            for (Pending p : group) {
+                if (err == null) p.done.complete(null);
+                else p.done.completeExceptionally(err);
+            }
+        });
+    }
+
+    public Map<String,Object> stats() {
+        long b = batches.sum(), n = events.sum();
+        Map<String,Object> m = new LinkedHashMap<>();
+        m.put("batches", b);
+        m.put("events", n);
+        m.put("queued", queue.size());
+        m.put("meanBatchSize", b == 0 ? 0.0 : (double) n / b);
+        m.put("maxBatchSize", maxBatchSeen.get());
+        m.put("meanQueueDelayMicros", n == 0 ? 0.0 : queueDelayNanos.sum() / 1_000.0 / n);
+        m.put("maxQueueDelayMicros", maxQueueDelayNanos.get() / 1_000);
+        return m;
+    }
+
+    public String name() { return name; }
+
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        flusher.join(TimeUnit.SECONDS.toMillis(5));
+    }
+}
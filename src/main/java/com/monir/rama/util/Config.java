@@ -0,0 +1,82 @@
+package com.monir.rama.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Settings come from --key=value on the command line (see init) first, then -Dkey=value,
+// then the matching env var (auth.http.maxInFlight → AUTH_HTTP_MAXINFLIGHT), then an optional
+// properties file named by auth.config, then the given default.
+public final class Config {
+    private Config() {}
+
+    // short command-line names for the settings people change most
+    private static final Map<String,String> ALIASES = Map.of(
+            "config",  "auth.config",
+            "tasks",   "auth.launch.tasks",
+            "threads", "auth.launch.threads",
+            "port",    "auth.http.port");
+
+    private static final Map<String,String> ARGS = new ConcurrentHashMap<>();
+    private static volatile Properties file;
+
+    // Takes --key=value pairs (full keys or the aliases above); must run before anything
+    // reads a setting, since several are captured in static fields.
+    public static void init(String[] args) {
+        for (String a : args) {
+            int i = a.indexOf('=');
+            if (!a.startsWith("--") || i < 0) throw new IllegalArgumentException("expected --key=value, got " + a);
+            String key = a.substring(2, i);
+            ARGS.put(ALIASES.getOrDefault(key, key), a.substring(i + 1));
+        }
+        file = null;
+    }
+
+    public static String str(String key, String def) {
+        String v = ARGS.get(key);
+        if (v == null) v = System.getProperty(key);
+        if (v == null) v = System.getenv(envName(key));
+        if (v == null && !key.equals("auth.config")) v = file().getProperty(key);
+        return v == null || v.isBlank() ? def : v.trim();
+    }
+
+    public static int intVal(String key, int def) {
+        String v = str(key, null);
+        return v == null ? def : Integer.parseInt(v);
+    }
+
+    public static long longVal(String key, long def) {
+        String v = str(key, null);
+        return v == null ? def : Long.parseLong(v);
+    }
+
+    public static boolean bool(String key, boolean def) {
+        String v = str(key, null);
+        return v == null ? def : Boolean.parseBoolean(v);
+    }
+
+    private static Properties file() {
+        Properties p = file;
+        if (p != null) return p;
+        p = new Properties();
+        String path = str("auth.config", null);
+        if (path != null) {
+            try (Reader r = Files.newBufferedReader(Path.of(path))) {
+                p.load(r);
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot read config file " + path, e);
+            }
+        }
+        return file = p;
+    }
+
+    private static String envName(String key) {
+        return key.replace('.', '_').replace('-', '_').toUpperCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,51 @@
+package com.monir.rama.util;
+
+import com.rpl.rama.ops.RamaFunction1;
+
+import java.util.List;
+import java.util.Map;
+
+// Depot.hashBy extractors. Each returns the key the consuming branch hashPartitions on, so a
+// record is appended to the partition that owns that key and the branch's hashPartition is a
+// local step instead of a hop. A "Batch" record (BatchingAppender, UserImport) is placed by
+// its first event; the events after it hop.
+public final class DepotKeys {
+    private DepotKeys() {}
+
+    public static class Registration implements RamaFunction1<Map<String,Object>, Object> {
+        @Override
+        public Object invoke(Map<String,Object> record) {
+            Map<String,Object> e = first(record);
+            Object type = e.get("type");
+            Object key = "RegisterRequested".equals(type) || "UserImported".equals(type)
+                    ? AuthFns.lowerTrim((String) e.get("email"))
+                    : e.get("userId");
+            return orFallback(key, e);
+        }
+    }
+
+    public static class Auth implements RamaFunction1<Map<String,Object>, Object> {
+        @Override
+        public Object invoke(Map<String,Object> record) {
+            Map<String,Object> e = first(record);
+            // LoginFailed lands on its principal|ip counter; the principal and ip counters hop
+            Object type = e.get("type");
+            Object key = "LoginFailed".equals(type)
+                    ? AuthFns.principalIpKey((String) e.get("principal"), (String) e.get("ip"))
+                    : "LogoutAllRequested".equals(type) ? e.get("userId") : e.get("sessionId");
+            return orFallback(key, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String,Object> first(Map<String,Object> record) {
+        if (!"Batch".equals(record.get("type"))) return record;
+        List<Map<String,Object>> events = (List<Map<String,Object>>) record.get("events");
+        return events.isEmpty() ? record : events.get(0);
+    }
+
+    // malformed events still need some deterministic partition
+    private static Object orFallback(Object key, Map<String,Object> e) {
+        return key != null ? key : e.hashCode();
+    }
+}
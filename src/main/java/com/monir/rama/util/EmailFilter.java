@@ -0,0 +1,120 @@
+package com.monir.rama.util;
+
+import com.rpl.rama.integration.TaskGlobalContext;
+import com.rpl.rama.integration.TaskGlobalObject;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// Per-task Bloom filter over the emails in that task's $$emailIndex partition. A miss is a
+// definite "not registered", so lookups can skip the PState read; a hit still reads it.
+//
+// Bits live only in memory. A fresh task reports every email as possibly present until the
+// registration tick has rebuilt the filter from $$emailIndex (see AuthModule), one page of keys
+// per tick; registrations made in the meantime are added as they happen. Only the task's own
+// thread touches it.
+public class EmailFilter implements TaskGlobalObject {
+
+    private static final LongAdder LOOKUPS = Metrics.counter("auth_email_filter_lookups_total",
+            "Email existence checks made against the per-task filter", "");
+    private static final LongAdder SHORT_CIRCUITED = Metrics.counter("auth_email_filter_short_circuits_total",
+            "Email existence checks answered by the filter without a PState read", "");
+
+    private enum State { EMPTY, BUILDING, READY }
+
+    private final boolean enabled;
+    private final long expected;
+    private final double fpp;
+
+    private transient long[] bits;
+    private transient int numBits;
+    private transient int numHashes;
+    private transient State state;
+    private transient String cursor;
+
+    public EmailFilter(boolean enabled, long expected, double fpp) {
+        this.enabled = enabled;
+        this.expected = expected;
+        this.fpp = fpp;
+    }
+
+    @Override
+    public void prepareForTask(int taskId, TaskGlobalContext context) {
+        state = State.EMPTY;
+        if (!enabled) return;
+        // standard sizing: m = -n ln p / (ln 2)^2 bits, k = m/n ln 2 hashes
+        long m = (long) Math.ceil(-expected * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        numBits = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+        numHashes = Math.max(1, (int) Math.round((double) numBits / expected * Math.log(2)));
+        bits = new long[(numBits + 63) >>> 6];
+    }
+
+    // Key the next rebuild page starts after ("" for the first page), or null when no rebuild is due
+    public String rebuildCursor() {
+        if (!enabled || state == State.READY) return null;
+        if (state == State.EMPTY) {
+            state = State.BUILDING;
+            cursor = "";
+        }
+        return cursor;
+    }
+
+    // adds one page of $$emailIndex keys; a short page was the last one
+    public boolean addPage(List<String> emails, int pageSize) {
+        for (String email : emails) add(email);
+        if (!emails.isEmpty()) cursor = emails.get(emails.size() - 1);
+        if (emails.size() < pageSize) {
+            state = State.READY;
+            cursor = null;
+        }
+        return true;
+    }
+
+    public boolean add(String email) {
+        if (!enabled || email == null) return false;
+        long h1 = hash(email), h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1L;
+        for (int i = 0; i < numHashes; i++) {
+            int bit = (int) Long.remainderUnsigned(h1 + i * h2, numBits);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+        return true;
+    }
+
+    public boolean mightContain(String email) {
+        if (state != State.READY || email == null) return true;
+        LOOKUPS.increment();
+        long h1 = hash(email), h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1L;
+        for (int i = 0; i < numHashes; i++) {
+            int bit = (int) Long.remainderUnsigned(h1 + i * h2, numBits);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                SHORT_CIRCUITED.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // FNV-1a over the chars, then a murmur finalizer so neighbouring strings spread out
+    private static long hash(String s) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public void close() {
+        bits = null;
+    }
+}
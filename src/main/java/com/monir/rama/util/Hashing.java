@@ -0,0 +1,93 @@
+package com.monir.rama.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Key-derivation work for OTPs and passwords. SecretKeyFactory lookups are cached per
+// thread and algorithm, and the slow work runs on a bounded pool so Rama task threads
+// only wait on a future (see Block.eachAsync) instead of burning CPU themselves.
+// When the queue is full, callers hash on their own thread, which slows the topology down to
+// what the pool can take.
+public final class Hashing {
+    private Hashing() {}
+
+    public static final String PBKDF2_SHA256 = "PBKDF2WithHmacSHA256";
+
+    // per-purpose cost settings; existing hashes keep the parameters they were stored with
+    public static final String OTP_ALGORITHM  = Config.str("auth.hash.otp.algorithm", PBKDF2_SHA256);
+    public static final int    OTP_ITERATIONS = Config.intVal("auth.hash.otp.iterations", 30_000);
+    // upper bound on a stored password's iterations; each login pays for them on a pool thread
+    public static final int    MAX_PASSWORD_ITERATIONS = Config.intVal("auth.hash.password.maxIterations", 1_000_000);
+
+    private static final LongAdder CALLER_RUNS = Metrics.counter("auth_hash_caller_runs_total",
+            "Hash jobs run on the submitting thread because the hashing pool was full", "");
+
+    private static final Map<String, ThreadLocal<SecretKeyFactory>> FACTORIES = new ConcurrentHashMap<>();
+
+    private static final ExecutorService POOL = newPool(
+            Config.intVal("auth.hash.threads", Runtime.getRuntime().availableProcessors()),
+            Config.intVal("auth.hash.queue", 4_096));
+
+    private static ExecutorService newPool(int threads, int queue) {
+        AtomicInteger n = new AtomicInteger();
+        ThreadFactory tf = r -> {
+            Thread t = new Thread(r, "auth-hash-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        // AbortPolicy: submit decides what a full queue means
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queue), tf, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    private static SecretKeyFactory factory(String algorithm) {
+        return FACTORIES.computeIfAbsent(algorithm, a -> ThreadLocal.withInitial(() -> {
+            try {
+                return SecretKeyFactory.getInstance(a);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("unsupported key derivation algorithm: " + a, e);
+            }
+        })).get();
+    }
+
+    public static byte[] pbkdf2(String algorithm, char[] password, byte[] salt, int iterations, int dkLen) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, dkLen * 8);
+        try {
+            return factory(algorithm).generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException e) {
+            throw new RuntimeException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    // A full pool runs the work on the calling task thread instead of failing the record, so the
+    // stream is slowed down rather than retried into the same full queue.
+    public static <T> CompletableFuture<T> submit(Supplier<T> work) {
+        try {
+            return CompletableFuture.supplyAsync(work, POOL);
+        } catch (RejectedExecutionException rejected) {
+            CALLER_RUNS.increment();
+            try {
+                return CompletableFuture.completedFuture(work.get());
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.monir.rama.util;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+
+// User and session ids are UUIDv7 values: 48 bits of epoch millis followed by 74 random
+// bits, so ids sort by creation time and stay unguessable. Inside the module they are
+// java.util.UUID (two longs, serialized as 16 bytes); only the HTTP edge turns them into
+// 32-char lowercase hex, the same shape the old string ids had.
+public final class Ids {
+    private Ids() {}
+
+    private static final ThreadLocal<SecureRandom> RNG = ThreadLocal.withInitial(SecureRandom::new);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    public static UUID newId() {
+        return forTime(System.currentTimeMillis(), RNG.get().nextLong(), RNG.get().nextLong());
+    }
+
+    // smallest id that can be minted at the given millis; handy as a range-scan bound
+    public static UUID minForTime(long millis) {
+        return forTime(millis, 0L, 0L);
+    }
+
+    public static long createdAt(UUID id) {
+        return id.getMostSignificantBits() >>> 16;
+    }
+
+    private static UUID forTime(long millis, long randA, long randB) {
+        long msb = (millis << 16) | 0x7000L | (randA & 0x0FFFL);
+        long lsb = (randB & 0x3FFF_FFFF_FFFF_FFFFL) | 0x8000_0000_0000_0000L;
+        return new UUID(msb, lsb);
+    }
+
+    public static String toText(UUID id) {
+        char[] out = new char[32];
+        hex(id.getMostSignificantBits(), out, 0);
+        hex(id.getLeastSignificantBits(), out, 16);
+        return new String(out);
+    }
+
+    private static void hex(long v, char[] out, int off) {
+        for (int i = 15; i >= 0; i--) {
+            out[off + i] = HEX[(int) (v & 0xF)];
+            v >>>= 4;
+        }
+    }
+
+    // Accepts the 32-char hex form and the dashed 36-char form.
+    public static UUID parse(String s) {
+        if (s == null) throw new IllegalArgumentException("id is required");
+        if (s.length() == 36) return UUID.fromString(s);
+        if (s.length() != 32) throw new IllegalArgumentException("malformed id: " + s);
+        return new UUID(unhex(s, 0), unhex(s, 16));
+    }
+
+    private static long unhex(String s, int off) {
+        long v = 0;
+        for (int i = off; i < off + 16; i++) {
+            int d = Character.digit(s.charAt(i), 16);
+            if (d < 0) throw new IllegalArgumentException("malformed id: " + s);
+            v = (v << 4) | d;
+        }
+        return v;
+    }
+}
@@ -1,18 +1,102 @@
 package com.monir.rama.util;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 public final class Json {
     private Json() {}
-    public static final ObjectMapper M = new ObjectMapper();
+    public static final ObjectMapper M = new ObjectMapper()
+            .registerModule(new SimpleModule()
+                    .addSerializer(UUID.class, new IdSerializer())
+                    // map keys too, e.g. the userId → user map of /api/user/get-batch
+                    .addKeySerializer(UUID.class, new IdKeySerializer()));
+    private static final ObjectWriter W = M.writer();
+
     public static Map<String,Object> readMap(InputStream is) throws Exception {
         return M.readValue(is, new TypeReference<Map<String,Object>>() {});
     }
     static void write(OutputStream os, Object body) throws Exception {
         M.writeValue(os, body);
     }
+
+    // Streams a request body into a HashMap (which depots serialize without trouble, unlike
+    // Map.of) holding only the named top-level fields; callers turn it into their depot event
+    // in place. Scalars are kept as text, objects and arrays as Map/List; nulls and other
+    // fields are skipped without being materialized.
+    public static Map<String,Object> readFields(InputStream is, String... fields) throws IOException {
+        Map<String,Object> out = new HashMap<>();
+        try (JsonParser p = M.getFactory().createParser(is)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) throw new IOException("expected a JSON object");
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.getCurrentName();
+                JsonToken t = p.nextToken();
+                if (t == JsonToken.VALUE_NULL || !wanted(name, fields)) {
+                    p.skipChildren();
+                } else if (t == JsonToken.START_OBJECT) {
+                    out.put(name, p.readValueAs(Map.class));
+                } else if (t == JsonToken.START_ARRAY) {
+                    out.put(name, p.readValueAs(List.class));
+                } else {
+                    out.put(name, p.getText());
+                }
+            }
+        }
+        return out;
+    }
+
+    // field names come out of the parser canonicalized, so this is a short scan of interned strings
+    private static boolean wanted(String name, String[] fields) {
+        for (String f : fields) if (f.equals(name)) return true;
+        return false;
+    }
+
+    // Serializes into this thread's buffer, which stays valid until the thread's next encode.
+    public static Buffer encode(Object body) throws IOException {
+        Buffer b = BUFFERS.get();
+        if (b.capacity() > MAX_RETAINED) BUFFERS.set(b = new Buffer());
+        b.reset();
+        W.writeValue(b, body);
+        return b;
+    }
+
+    private static final int MAX_RETAINED = 64 * 1024;
+    private static final ThreadLocal<Buffer> BUFFERS = ThreadLocal.withInitial(Buffer::new);
+
+    public static final class Buffer extends ByteArrayOutputStream {
+        Buffer() { super(512); }
+        public byte[] array() { return buf; }
+        int capacity() { return buf.length; }
+    }
+
+    // ids leave the service in the compact hex form (see Ids)
+    private static final class IdSerializer extends StdSerializer<UUID> {
+        IdSerializer() { super(UUID.class); }
+        @Override
+        public void serialize(UUID id, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeString(Ids.toText(id));
+        }
+    }
+
+    private static final class IdKeySerializer extends StdSerializer<UUID> {
+        IdKeySerializer() { super(UUID.class); }
+        @Override
+        public void serialize(UUID id, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeFieldName(Ids.toText(id));
+        }
+    }
 }
@@ -0,0 +1,158 @@
+package com.monir.rama.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Where EmailWorker hands finished mail. "file" appends one JSON line per message (tests and
+// local runs); "smtp" speaks plain SMTP to a relay such as a local MailHog or smtp4dev.
+public interface MailTransport extends AutoCloseable {
+
+    final class Mail {
+        public final String messageId, to, subject, body;
+        public final Map<String,Object> source;   // the depot record, kept for dead-lettering
+        public Mail(String messageId, String to, String subject, String body, Map<String,Object> source) {
+            this.messageId = messageId;
+            this.to = to;
+            this.subject = subject;
+            this.body = body;
+            this.source = source;
+        }
+    }
+
+    // Sends the batch and returns the messages that were not accepted (empty when all went out).
+    // Throws when nothing could be attempted, e.g. the relay is unreachable.
+    List<Mail> send(List<Mail> batch) throws IOException;
+
+    String name();
+
+    @Override
+    default void close() throws IOException {}
+
+    static MailTransport configured() {
+        String kind = Config.str("auth.email.transport", "file");
+        switch (kind) {
+            case "file":
+                return new FileSink(Path.of(Config.str("auth.email.file", "email-outbox.jsonl")));
+            case "smtp":
+                return new Smtp(Config.str("auth.email.smtp.host", "localhost"),
+                        Config.intVal("auth.email.smtp.port", 1025),
+                        Config.str("auth.email.from", "no-reply@example.com"),
+                        Config.intVal("auth.email.smtp.timeoutMillis", 10_000));
+            default:
+                throw new IllegalArgumentException("unknown auth.email.transport: " + kind);
+        }
+    }
+
+    final class FileSink implements MailTransport {
+        private final Path path;
+        public FileSink(Path path) { this.path = path; }
+
+        @Override
+        public List<Mail> send(List<Mail> batch) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            for (Mail m : batch) {
+                Map<String,Object> line = new LinkedHashMap<>();
+                line.put("messageId", m.messageId);
+                line.put("to", m.to);
+                line.put("subject", m.subject);
+                line.put("body", m.body);
+                sb.append(Json.M.writeValueAsString(line)).append('\n');
+            }
+            Files.writeString(path, sb, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            return List.of();
+        }
+
+        @Override
+        public String name() { return "file"; }
+    }
+
+    // One connection per batch; a rejected recipient fails only that message.
+    final class Smtp implements MailTransport {
+        private final String host, from;
+        private final int port, timeoutMillis;
+
+        public Smtp(String host, int port, String from, int timeoutMillis) {
+            this.host = host;
+            this.port = port;
+            this.from = from;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public List<Mail> send(List<Mail> batch) throws IOException {
+            List<Mail> failed = new ArrayList<>();
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress(host, port), timeoutMillis);
+                s.setSoTimeout(timeoutMillis);
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+                expect(in, 220);
+                command(in, out, "EHLO auth-service", 250);
+                for (int i = 0; i < batch.size(); i++) {
+                    Mail m = batch.get(i);
+                    // whatever reaches the relay must not be able to end a command or header line
+                    if (!AuthFns.isValidEmail(m.to) || !singleLine(m.subject) || !singleLine(m.messageId)) {
+                        failed.add(m);
+                        continue;
+                    }
+                    try {
+                        command(in, out, "MAIL FROM:<" + from + ">", 250);
+                        command(in, out, "RCPT TO:<" + m.to + ">", 250);
+                        command(in, out, "DATA", 354);
+                        out.write("From: " + from + "\r\nTo: " + m.to + "\r\nSubject: " + m.subject
+                                + "\r\nMessage-ID: <" + m.messageId + "@auth-service>\r\n\r\n");
+                        for (String line : m.body.split("\n")) out.write((line.startsWith(".") ? "." : "") + line + "\r\n");
+                        command(in, out, ".", 250);
+                    } catch (Rejected r) {
+                        failed.add(m);
+                        command(in, out, "RSET", 250);
+                    } catch (IOException io) {
+                        // connection lost mid-batch: everything not yet accepted is retried
+                        failed.addAll(batch.subList(i, batch.size()));
+                        return failed;
+                    }
+                }
+                command(in, out, "QUIT", 221);
+            }
+            return failed;
+        }
+
+        @Override
+        public String name() { return "smtp"; }
+
+        private static boolean singleLine(String s) {
+            return s.indexOf('\r') < 0 && s.indexOf('\n') < 0;
+        }
+
+        private static final class Rejected extends IOException { Rejected(String m) { super(m); } }
+
+        private static void command(BufferedReader in, Writer out, String line, int code) throws IOException {
+            out.write(line + "\r\n");
+            out.flush();
+            expect(in, code);
+        }
+
+        // reads a possibly multi-line reply ("250-..." continuation lines end with "250 ...")
+        private static void expect(BufferedReader in, int code) throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null) throw new IOException("SMTP connection closed");
+            } while (line.length() > 3 && line.charAt(3) == '-');
+            if (!line.startsWith(Integer.toString(code))) throw new Rejected(line);
+        }
+    }
+}
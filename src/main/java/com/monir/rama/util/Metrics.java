@@ -0,0 +1,255 @@
+package com.monir.rama.util;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// Process-wide latency and count metrics, rendered in the Prometheus text format by
+// HttpMain's /metrics. Recording is a map lookup by a label that already exists plus a
+// Recorder/LongAdder update, so it stays on in production. Counts and sums are cumulative;
+// the quantiles cover the interval since the previous scrape (Recorder swaps histograms).
+//
+// Topology metrics are recorded by whichever JVM runs the task; on an InProcessCluster that
+// is the same JVM as the HTTP tier. On a real cluster each worker JVM serves its own /metrics
+// (see WorkerMetrics) and the HTTP tier's /metrics has only its own.
+public final class Metrics {
+    private Metrics() {}
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final long MAX_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    public static class Timer {
+        private final Recorder recorder = new Recorder(MAX_MICROS, 2);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumMicros = new LongAdder();
+        private Histogram interval;
+
+        public void recordMicros(long micros) {
+            long v = Math.max(0, Math.min(micros, MAX_MICROS));
+            recorder.recordValue(v);
+            count.increment();
+            sumMicros.add(v);
+        }
+
+        public void recordSinceNanos(long startNanos) {
+            recordMicros((System.nanoTime() - startNanos) / 1_000);
+        }
+    }
+
+    // HTTP endpoints also count responses by status class
+    public static final class Endpoint extends Timer {
+        private final LongAdder[] byClass = new LongAdder[6];
+        Endpoint() { for (int i = 0; i < byClass.length; i++) byClass[i] = new LongAdder(); }
+
+        public void record(int status, long startNanos) {
+            recordSinceNanos(startNanos);
+            byClass[Math.max(0, Math.min(status / 100, 5))].increment();
+        }
+    }
+
+    // One metric name with one variable label; constLabels (may be empty) go in front of it.
+    public static final class Family<T extends Timer> {
+        final String name, help, constLabels, label;
+        final Supplier<T> factory;
+        final Map<String, T> children = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String constLabels, String label, Supplier<T> factory) {
+            this.name = name;
+            this.help = help;
+            this.constLabels = constLabels;
+            this.label = label;
+            this.factory = factory;
+        }
+
+        public T get(String value) {
+            T t = children.get(value);
+            return t != null ? t : children.computeIfAbsent(value, v -> factory.get());
+        }
+    }
+
+    private static final List<Family<?>> FAMILIES = new CopyOnWriteArrayList<>();
+
+    private static <T extends Timer> Family<T> family(String name, String help, String constLabels, String label, Supplier<T> factory) {
+        Family<T> f = new Family<>(name, help, constLabels, label, factory);
+        FAMILIES.add(f);
+        return f;
+    }
+
+    // Plain counters and gauges, one series each; series sharing a name must be registered together.
+    private static final class Scalar {
+        final String name, help, type, labels;
+        final LongSupplier value;
+        Scalar(String name, String help, String type, String labels, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labels = labels;
+            this.value = value;
+        }
+    }
+
+    private static final List<Scalar> SCALARS = new CopyOnWriteArrayList<>();
+
+    public static LongAdder counter(String name, String help, String labels) {
+        LongAdder n = new LongAdder();
+        SCALARS.add(new Scalar(name, help, "counter", labels, n::sum));
+        return n;
+    }
+
+    public static void gauge(String name, String help, String labels, LongSupplier value) {
+        SCALARS.add(new Scalar(name, help, "gauge", labels, value));
+    }
+
+    // ---------------- Families ----------------
+
+    public static final Family<Timer> REGISTRATION_EVENTS = family("auth_stream_event_seconds",
+            "Time from an event entering a stream topology to the end of its branch",
+            "topology=\"registration\",", "event", Timer::new);
+    public static final Family<Timer> AUTH_EVENTS = family("auth_stream_event_seconds", null,
+            "topology=\"auth\",", "event", Timer::new);
+    public static final Family<Timer> APPEND_LAG = family("auth_stream_append_lag_seconds",
+            "Wall-clock time from the depot append to the stream topology picking the record up",
+            "", "topology", Timer::new);
+    public static final Family<Timer> QUERIES = family("auth_query_seconds",
+            "Query topology invoke latency as seen by the client",
+            "", "query", Timer::new);
+    public static final Family<Timer> EMAIL_SEND = family("auth_email_send_seconds",
+            "Time for a mail transport to take one batch",
+            "", "transport", Timer::new);
+    public static final Family<Endpoint> HTTP = family("auth_http_request_seconds",
+            "HTTP request latency from admission to response",
+            "", "path", Endpoint::new);
+
+    // ---------------- Recording ----------------
+
+    // Wall clock in micros; stream branches can finish on a different task than they started on,
+    // so System.nanoTime is not comparable across the two ends.
+    public static long nowMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000L + now.getNano() / 1_000;
+    }
+
+    public static void streamEvent(Family<Timer> topology, String type, Long startMicros) {
+        topology.get(type == null ? "unknown" : type).recordMicros(nowMicros() - startMicros);
+    }
+
+    // records carry the appender's "appendedAt" millis (see BatchingAppender and HttpMain)
+    public static void appendLag(String topology, Map<?,?> record) {
+        Object at = record.get("appendedAt");
+        if (at instanceof Number) APPEND_LAG.get(topology).recordMicros((System.currentTimeMillis() - ((Number) at).longValue()) * 1_000);
+    }
+
+    public static <T> CompletableFuture<T> timeQuery(String query, CompletableFuture<T> invoke) {
+        Timer t = QUERIES.get(query);
+        long start = System.nanoTime();
+        return invoke.whenComplete((r, err) -> t.recordSinceNanos(start));
+    }
+
+    // ---------------- Exposition ----------------
+
+    // GET handler for /metrics in Prometheus text format
+    public static HttpHandler handler(BatchingAppender... appenders) {
+        return ex -> {
+            byte[] bytes = render(appenders).getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            ex.sendResponseHeaders(200, bytes.length);
+            ex.getResponseBody().write(bytes);
+            ex.close();
+        };
+    }
+
+    // a server of its own for processes without an HTTP tier (EmailWorker, Rama workers)
+    public static HttpServer serve(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+        http.createContext("/metrics", handler());
+        http.start();
+        return http;
+    }
+
+    public static synchronized String render(BatchingAppender... appenders) {
+        StringBuilder sb = new StringBuilder(4_096);
+        String lastName = null;
+        for (Family<?> f : FAMILIES) {
+            if (!f.name.equals(lastName)) {
+                if (f.help != null) sb.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+                sb.append("# TYPE ").append(f.name).append(" summary\n");
+                lastName = f.name;
+            }
+            for (Map.Entry<String, ? extends Timer> e : f.children.entrySet()) {
+                Timer t = e.getValue();
+                String labels = f.constLabels + f.label + "=\"" + escape(e.getKey()) + "\"";
+                t.interval = t.recorder.getIntervalHistogram(t.interval);
+                for (double q : QUANTILES) {
+                    sb.append(f.name).append('{').append(labels).append(",quantile=\"").append(q).append("\"} ");
+                    sb.append(t.interval.getTotalCount() == 0 ? "NaN" : seconds(t.interval.getValueAtPercentile(q * 100))).append('\n');
+                }
+                sb.append(f.name).append("_sum{").append(labels).append("} ").append(seconds(t.sumMicros.sum())).append('\n');
+                sb.append(f.name).append("_count{").append(labels).append("} ").append(t.count.sum()).append('\n');
+            }
+        }
+        if (!HTTP.children.isEmpty()) {
+            sb.append("# HELP auth_http_responses_total HTTP responses by status class\n");
+            sb.append("# TYPE auth_http_responses_total counter\n");
+            for (Map.Entry<String, Endpoint> e : HTTP.children.entrySet()) {
+                LongAdder[] byClass = e.getValue().byClass;
+                for (int c = 1; c < byClass.length; c++) {
+                    long n = byClass[c].sum();
+                    if (n == 0) continue;
+                    sb.append("auth_http_responses_total{path=\"").append(escape(e.getKey()))
+                            .append("\",code=\"").append(c).append("xx\"} ").append(n).append('\n');
+                }
+            }
+        }
+        lastName = null;
+        for (Scalar c : SCALARS) {
+            if (!c.name.equals(lastName)) {
+                if (c.help != null) sb.append("# HELP ").append(c.name).append(' ').append(c.help).append('\n');
+                sb.append("# TYPE ").append(c.name).append(' ').append(c.type).append('\n');
+                lastName = c.name;
+            }
+            sb.append(c.name);
+            if (!c.labels.isEmpty()) sb.append('{').append(c.labels).append('}');
+            sb.append(' ').append(c.value.getAsLong()).append('\n');
+        }
+        if (appenders.length > 0) {
+            sb.append("# HELP auth_batch_events_total Events handed to a batching appender\n");
+            sb.append("# TYPE auth_batch_events_total counter\n");
+            for (BatchingAppender a : appenders) appenderStat(sb, "auth_batch_events_total", a, "events");
+            sb.append("# HELP auth_batch_appends_total Depot appends made by a batching appender\n");
+            sb.append("# TYPE auth_batch_appends_total counter\n");
+            for (BatchingAppender a : appenders) appenderStat(sb, "auth_batch_appends_total", a, "batches");
+            sb.append("# HELP auth_batch_queued Events waiting in a batching appender's queue\n");
+            sb.append("# TYPE auth_batch_queued gauge\n");
+            for (BatchingAppender a : appenders) appenderStat(sb, "auth_batch_queued", a, "queued");
+        }
+        return sb.toString();
+    }
+
+    private static void appenderStat(StringBuilder sb, String name, BatchingAppender a, String stat) {
+        sb.append(name).append("{appender=\"").append(escape(a.name())).append("\"} ")
+                .append(a.stats().get(stat)).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1_000_000.0);
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
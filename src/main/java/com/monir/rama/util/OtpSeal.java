@@ -0,0 +1,82 @@
+package com.monir.rama.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// OTP codes travel to EmailWorker through the *out_email depot, which keeps its entries, so
+// they are sealed with AES-GCM under auth.email.otpKey (base64, 16/24/32 bytes) shared by the
+// module workers and the email workers. Only an in-process run (allowPlaintext) may go without
+// a key, and then codes are stored as "plain:<code>"; anywhere else AuthModule and EmailWorker
+// refuse to start (requireKey).
+public final class OtpSeal {
+    private OtpSeal() {}
+
+    private static final String KEY_B64 = Config.str("auth.email.otpKey", null);
+    private static final SecureRandom RNG = new SecureRandom();
+    private static final int IV_BYTES = 12;
+
+    private static volatile boolean plaintextAllowed;
+
+    // for a module launched on an InProcessCluster in this JVM (HttpMain's default mode, tests)
+    public static void allowPlaintext() {
+        plaintextAllowed = true;
+    }
+
+    public static void requireKey(String who) {
+        if (KEY_B64 == null) {
+            if (plaintextAllowed) return;
+            throw new IllegalStateException(who + " needs auth.email.otpKey (base64 AES key); plaintext OTPs are only allowed in-process");
+        }
+        int len;
+        try { len = Base64.getDecoder().decode(KEY_B64).length; }
+        catch (IllegalArgumentException e) { throw new IllegalStateException("auth.email.otpKey is not valid base64", e); }
+        if (len != 16 && len != 24 && len != 32) throw new IllegalStateException("auth.email.otpKey must be 16, 24 or 32 bytes, not " + len);
+    }
+
+    public static String seal(String code) {
+        if (KEY_B64 == null) {
+            requireKey("OtpSeal");
+            return "plain:" + code;
+        }
+        try {
+            byte[] iv = new byte[IV_BYTES];
+            RNG.nextBytes(iv);
+            Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+            c.init(Cipher.ENCRYPT_MODE, key(), new GCMParameterSpec(128, iv));
+            byte[] ct = c.doFinal(code.getBytes(StandardCharsets.UTF_8));
+            byte[] out = new byte[IV_BYTES + ct.length];
+            System.arraycopy(iv, 0, out, 0, IV_BYTES);
+            System.arraycopy(ct, 0, out, IV_BYTES, ct.length);
+            return "v1:" + Base64.getEncoder().encodeToString(out);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("cannot seal OTP", e);
+        }
+    }
+
+    public static String open(String sealed) {
+        if (sealed.startsWith("plain:")) {
+            if (!plaintextAllowed) throw new IllegalStateException("plaintext OTP outside an in-process run");
+            return sealed.substring(6);
+        }
+        if (!sealed.startsWith("v1:")) throw new IllegalArgumentException("unknown OTP seal format");
+        if (KEY_B64 == null) throw new IllegalStateException("auth.email.otpKey is not set");
+        try {
+            byte[] in = Base64.getDecoder().decode(sealed.substring(3));
+            Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+            c.init(Cipher.DECRYPT_MODE, key(), new GCMParameterSpec(128, in, 0, IV_BYTES));
+            return new String(c.doFinal(in, IV_BYTES, in.length - IV_BYTES), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("cannot open OTP seal", e);
+        }
+    }
+
+    private static SecretKeySpec key() {
+        return new SecretKeySpec(Base64.getDecoder().decode(KEY_B64), "AES");
+    }
+}
@@ -0,0 +1,125 @@
+package com.monir.rama.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Token buckets in a fixed, lock-free table, so memory is bounded by the slot count whatever
+// the key space. A key is a 64-bit hash of route, kind and value (see key). Slots are grouped in
+// sets of WAYS; a key lives somewhere in its set, and a new key takes an empty slot or evicts
+// the set's least recently used one, which then starts over with a full bucket.
+//
+// A bucket is one long: the last refill time (42 bits of millis since the limiter was made)
+// and the tokens left (22 bits, in thousandths), updated with a single CAS. Two keys whose
+// hashes collide share a bucket; a slot being handed to a new key can briefly be read with
+// its previous owner's state. Both only make the limit slightly off for a moment.
+public final class RateLimiter {
+
+    private static final int WAYS = 8;
+    private static final int TOKEN_BITS = 22;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long ONE = 1_000;
+    // largest burst that fits the token field
+    public static final int MAX_BURST = (int) (TOKEN_MASK / ONE);
+
+    private final AtomicLongArray keys;
+    private final AtomicLongArray buckets;
+    private final int setMask;
+    private final long epoch = System.currentTimeMillis();
+
+    // per-second refill rate and bucket size, e.g. parsed from "20:40"
+    public static final class Rule {
+        public final double perSecond;
+        public final int burst;
+
+        public Rule(double perSecond, int burst) {
+            if (perSecond <= 0 || burst < 1 || burst > MAX_BURST)
+                throw new IllegalArgumentException("rate must be > 0 and burst within 1.." + MAX_BURST);
+            this.perSecond = perSecond;
+            this.burst = burst;
+        }
+
+        // "rate:burst"; a missing or blank spec means no limit
+        public static Rule parse(String spec) {
+            if (spec == null || spec.isBlank()) return null;
+            int i = spec.indexOf(':');
+            double rate = Double.parseDouble(i < 0 ? spec.trim() : spec.substring(0, i).trim());
+            int burst = i < 0 ? (int) Math.max(1, Math.ceil(rate)) : Integer.parseInt(spec.substring(i + 1).trim());
+            return new Rule(rate, burst);
+        }
+    }
+
+    public RateLimiter(int slots) {
+        int n = Integer.highestOneBit(Math.max(slots, WAYS));
+        this.keys = new AtomicLongArray(n);
+        this.buckets = new AtomicLongArray(n);
+        this.setMask = (n / WAYS) - 1;
+    }
+
+    public static long seed(String s) {
+        return hash(0x9E3779B97F4A7C15L, s);
+    }
+
+    // a non-zero key for value under seed; 0 marks an empty slot
+    public static long key(long seed, String value) {
+        long h = hash(seed, value);
+        return h == 0 ? 1 : h;
+    }
+
+    // 0 when a token was taken, else how many millis until one will be available
+    public long tryAcquire(long key, Rule rule, long nowMillis) {
+        long now = Math.max(0, nowMillis - epoch);
+        int slot = slotFor(key, now, rule);
+        double refillPerMilli = rule.perSecond;
+        long cap = rule.burst * ONE;
+        while (true) {
+            long b = buckets.get(slot);
+            long last = b >>> TOKEN_BITS;
+            long tokens = b & TOKEN_MASK;
+            long elapsed = Math.max(0, now - last);
+            tokens = Math.min(cap, tokens + (long) Math.min(elapsed * refillPerMilli, cap));
+            if (tokens < ONE) return Math.max(1, (long) Math.ceil((ONE - tokens) / refillPerMilli));
+            if (buckets.compareAndSet(slot, b, pack(Math.max(now, last), tokens - ONE))) return 0;
+        }
+    }
+
+    private int slotFor(long key, long now, Rule rule) {
+        int base = ((int) (key ^ (key >>> 32)) & setMask) * WAYS;
+        while (true) {
+            int victim = -1;
+            long oldest = Long.MAX_VALUE;
+            for (int i = base; i < base + WAYS; i++) {
+                long k = keys.get(i);
+                if (k == key) return i;
+                long seen = k == 0 ? -1 : buckets.get(i) >>> TOKEN_BITS;
+                if (seen < oldest) {
+                    oldest = seen;
+                    victim = i;
+                }
+            }
+            long prev = keys.get(victim);
+            if (keys.compareAndSet(victim, prev, key)) {
+                buckets.set(victim, pack(now, rule.burst * ONE));
+                return victim;
+            }
+            // another thread claimed the slot first; look again, it may have been for this key
+        }
+    }
+
+    private static long pack(long millis, long tokens) {
+        return (millis << TOKEN_BITS) | tokens;
+    }
+
+    // FNV-1a folded into the seed, then a murmur finalizer
+    private static long hash(long seed, String s) {
+        long h = seed ^ 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
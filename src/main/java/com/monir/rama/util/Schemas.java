@@ -0,0 +1,88 @@
+package com.monir.rama.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+// Field layouts of the fixed-key PState values (key, class, key, class, ...), in the form
+// PState.fixedKeysSchema takes them, plus the migrations that move values written as
+// free-form HashMaps onto those layouts. Migrations drop unknown keys and null values and
+// coerce numbers and hex ids to the declared type; they are idempotent, as Rama requires.
+//
+// The values are not subindexed. Subindexing applies to map, set and list schemas, and these
+// are small records (well under 200 bytes) that are always read whole: a field transform
+// rewrites one small value, not a collection. The collections that grow, such as a user's
+// sessions, expiry buckets and failure windows, are subindexed where AuthModule declares them.
+public final class Schemas {
+    private Schemas() {}
+
+    public static final Object[] USER = {
+            "userId", UUID.class,
+            "email", String.class,
+            "name", String.class,
+            "verified", Boolean.class,
+            "createdAt", Long.class };
+
+    public static final Object[] OTP = {
+            "hashB64", String.class,
+            "saltB64", String.class,
+            "algo", String.class,
+            "iterations", Long.class,
+            "expiresAtMillis", Long.class,
+            "attempts", Long.class };
+
+    public static final Object[] CRED = {
+            "hash", String.class,
+            "algo", String.class,
+            "salt", String.class,
+            "params", Map.class,
+            "ts", Long.class };
+
+    public static final Object[] SESSION = {
+            "sessionId", UUID.class,
+            "userId", UUID.class,
+            "device", String.class,
+            "ip", String.class,
+            "revoked", Boolean.class,
+            "createdAt", Long.class,
+            "lastSeen", Long.class,
+            "expiresAt", Long.class };
+
+    // entry of a user's session index
+    public static final Object[] SESSION_REF = {
+            "device", String.class,
+            "ip", String.class,
+            "createdAt", Long.class };
+
+    // remembered command results for idempotency; result is absent while the first attempt runs.
+    // attemptId names the depot append that holds the claim, so Rama's retry of it is let through;
+    // requestHash fingerprints the request, so a repeat with another body is refused
+    public static final Object[] REQUEST = {
+            "result", Object.class,
+            "attemptId", UUID.class,
+            "requestHash", String.class,
+            "expiresAt", Long.class };
+
+    public static Object migrateUser(Object v)    { return project(v, USER); }
+    public static Object migrateOtp(Object v)     { return project(v, OTP); }
+    public static Object migrateCred(Object v)    { return project(v, CRED); }
+    public static Object migrateSession(Object v) { return project(v, SESSION); }
+
+    private static Object project(Object v, Object[] layout) {
+        if (!(v instanceof Map)) return v;
+        Map<?,?> in = (Map<?,?>) v;
+        Map<String,Object> out = new HashMap<>();
+        for (int i = 0; i < layout.length; i += 2) {
+            Object val = in.get(layout[i]);
+            if (val != null) out.put((String) layout[i], coerce(val, (Class<?>) layout[i + 1]));
+        }
+        return out;
+    }
+
+    private static Object coerce(Object val, Class<?> type) {
+        if (val instanceof Number && type == Long.class)    return ((Number) val).longValue();
+        if (val instanceof Number && type == Integer.class) return ((Number) val).intValue();
+        if (val instanceof String && type == UUID.class)    return Ids.parse((String) val);
+        return val;
+    }
+}
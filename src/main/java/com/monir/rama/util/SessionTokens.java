@@ -0,0 +1,135 @@
+package com.monir.rama.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Signed session tokens: "v1.<kid>.<payload>.<mac>", base64url without padding. The payload
+// is sessionId (16 bytes), userId (16) and expiresAt millis (8); the issue time is the
+// sessionId's own timestamp (see Ids). The mac is HMAC-SHA256 over everything before it.
+//
+// auth.session.tokenKeys lists "kid:base64key" pairs, comma separated. The first signs; all
+// verify, so a key is rotated by putting its successor in front and dropping it once tokens
+// signed with it have expired. Without keys a random key is made per process, which only works
+// with a single HTTP replica; HttpMain refuses to serve a remote cluster that way (requireKeys).
+public final class SessionTokens {
+
+    private static final String ALGO = "HmacSHA256";
+    private static final int PAYLOAD_BYTES = 40;
+    private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder UNB64 = Base64.getUrlDecoder();
+
+    private static final SessionTokens CONFIGURED = new SessionTokens(Config.str("auth.session.tokenKeys", null));
+
+    private final Map<String, SecretKeySpec> keys = new LinkedHashMap<>();
+    private final String signingKid;
+    private final boolean generated;
+
+    SessionTokens(String spec) {
+        generated = spec == null || spec.isBlank();
+        if (generated) {
+            byte[] k = new byte[32];
+            new SecureRandom().nextBytes(k);
+            keys.put("local", new SecretKeySpec(k, ALGO));
+        } else {
+            for (String pair : spec.split(",")) {
+                int i = pair.indexOf(':');
+                if (i <= 0) throw new IllegalArgumentException("auth.session.tokenKeys: expected kid:base64key, got " + pair.trim());
+                keys.put(pair.substring(0, i).trim(), new SecretKeySpec(Base64.getDecoder().decode(pair.substring(i + 1).trim()), ALGO));
+            }
+        }
+        signingKid = keys.keySet().iterator().next();
+    }
+
+    // every replica behind a load balancer must sign and verify with the same keys
+    public static void requireKeys() {
+        if (CONFIGURED.generated) throw new IllegalStateException("auth.session.tokenKeys is required with auth.cluster.mode=remote");
+    }
+
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+        try { return Mac.getInstance(ALGO); }
+        catch (GeneralSecurityException e) { throw new IllegalStateException(e); }
+    });
+
+    public static final class Claims {
+        public final UUID sessionId;
+        public final UUID userId;
+        public final long issuedAt;
+        public final long expiresAt;
+
+        Claims(UUID sessionId, UUID userId, long expiresAt) {
+            this.sessionId = sessionId;
+            this.userId = userId;
+            this.issuedAt = Ids.createdAt(sessionId);
+            this.expiresAt = expiresAt;
+        }
+
+        public Map<String,Object> toMap() {
+            Map<String,Object> m = new LinkedHashMap<>();
+            m.put("sessionId", sessionId);
+            m.put("userId", userId);
+            m.put("issuedAt", issuedAt);
+            m.put("expiresAt", expiresAt);
+            return m;
+        }
+    }
+
+    public static String issue(UUID sessionId, UUID userId, long expiresAt) {
+        return CONFIGURED.sign(sessionId, userId, expiresAt);
+    }
+
+    // The token's claims, or null when it is malformed, signed with an unknown key, tampered
+    // with or expired. Revocation is the caller's concern (see SessionRevocations).
+    public static Claims verify(String token, long now) {
+        return CONFIGURED.check(token, now);
+    }
+
+    String sign(UUID sessionId, UUID userId, long expiresAt) {
+        ByteBuffer p = ByteBuffer.allocate(PAYLOAD_BYTES);
+        p.putLong(sessionId.getMostSignificantBits()).putLong(sessionId.getLeastSignificantBits());
+        p.putLong(userId.getMostSignificantBits()).putLong(userId.getLeastSignificantBits());
+        p.putLong(expiresAt);
+        String signed = "v1." + signingKid + "." + B64.encodeToString(p.array());
+        return signed + "." + B64.encodeToString(mac(keys.get(signingKid), signed));
+    }
+
+    Claims check(String token, long now) {
+        if (token == null || !token.startsWith("v1.")) return null;
+        int kidEnd = token.indexOf('.', 3);
+        int macStart = token.lastIndexOf('.');
+        if (kidEnd < 0 || macStart <= kidEnd) return null;
+        SecretKeySpec key = keys.get(token.substring(3, kidEnd));
+        if (key == null) return null;
+        byte[] payload, mac;
+        try {
+            payload = UNB64.decode(token.substring(kidEnd + 1, macStart));
+            mac = UNB64.decode(token.substring(macStart + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (payload.length != PAYLOAD_BYTES
+                || !MessageDigest.isEqual(mac, mac(key, token.substring(0, macStart)))) return null;
+        ByteBuffer p = ByteBuffer.wrap(payload);
+        Claims c = new Claims(new UUID(p.getLong(), p.getLong()), new UUID(p.getLong(), p.getLong()), p.getLong());
+        return c.expiresAt > now ? c : null;
+    }
+
+    private static byte[] mac(SecretKeySpec key, String signed) {
+        try {
+            Mac m = MAC.get();
+            m.init(key);
+            return m.doFinal(signed.getBytes(StandardCharsets.US_ASCII));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("cannot sign session token", e);
+        }
+    }
+}
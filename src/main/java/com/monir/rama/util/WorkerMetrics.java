@@ -0,0 +1,43 @@
+package com.monir.rama.util;
+
+import com.rpl.rama.integration.TaskGlobalContext;
+import com.rpl.rama.integration.TaskGlobalObject;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+
+// Serves /metrics from each worker JVM that runs AuthModule tasks, so the auth_stream_* and
+// email filter metrics recorded there can be scraped. Every task of the JVM gets a copy; the
+// first one to start opens the server on auth.metrics.workerPort, the rest see it running.
+// Port 0 (the default) leaves it off, which suits an InProcessCluster: the HTTP tier's own
+// /metrics already covers that JVM.
+public class WorkerMetrics implements TaskGlobalObject {
+
+    private static HttpServer server;
+
+    private final int port;
+
+    public WorkerMetrics(int port) {
+        this.port = port;
+    }
+
+    @Override
+    public void prepareForTask(int taskId, TaskGlobalContext context) {
+        if (port <= 0) return;
+        synchronized (WorkerMetrics.class) {
+            if (server != null) return;
+            try {
+                server = Metrics.serve(port);
+                System.out.println("AuthModule worker metrics on :" + port);
+            } catch (IOException e) {
+                // e.g. a second worker on the same host; the module runs on without it
+                System.err.println("AuthModule worker metrics not served on :" + port + ": " + e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // shared by every task of the JVM, so it lives as long as the worker does
+    }
+}
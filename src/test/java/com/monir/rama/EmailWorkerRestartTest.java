@@ -0,0 +1,87 @@
+package com.monir.rama;
+
+import com.monir.rama.util.MailTransport;
+import com.monir.rama.util.OtpSeal;
+import com.rpl.rama.test.InProcessCluster;
+import com.rpl.rama.test.LaunchConfig;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// HttpMain's default mode launches a fresh InProcessCluster on every run while the offsets file
+// stays on disk. The OTP mail of the new cluster must still go out.
+class EmailWorkerRestartTest {
+
+    @TempDir Path dir;
+
+    @BeforeAll
+    static void inProcess() {
+        OtpSeal.allowPlaintext();
+    }
+
+    // what HttpMain does: every run is its own instance
+    @Test
+    void offsetsOfAnotherInstanceAreNotUsed() throws Exception {
+        Path offsets = dir.resolve("offsets.properties");
+        Path outbox = dir.resolve("outbox.jsonl");
+        registerOnFreshCluster("run-1", offsets, outbox, "first@example.com");
+        registerOnFreshCluster("run-2", offsets, outbox, "second@example.com");
+
+        List<String> mail = Files.readAllLines(outbox);
+        assertEquals(2, mail.size());
+        assertTrue(mail.get(1).contains("second@example.com"));
+    }
+
+    // same instance name on a new cluster: the saved offset is past the depot's end
+    @Test
+    void offsetsPastTheDepotEndAreReset() throws Exception {
+        Path offsets = dir.resolve("offsets.properties");
+        Path outbox = dir.resolve("outbox.jsonl");
+        registerOnFreshCluster("same", offsets, outbox, "first@example.com");
+        registerOnFreshCluster("same", offsets, outbox, "second@example.com");
+
+        List<String> mail = Files.readAllLines(outbox);
+        assertEquals(2, mail.size());
+        assertTrue(mail.get(1).contains("second@example.com"));
+    }
+
+    private void registerOnFreshCluster(String instance, Path offsets, Path outbox, String email) throws Exception {
+        long before = Files.exists(outbox) ? Files.readAllLines(outbox).size() : 0;
+        try (InProcessCluster cluster = InProcessCluster.create()) {
+            cluster.launchModule(new AuthModule(), new LaunchConfig(1, 1));
+            // the worker exists before the registration, as in HttpMain
+            try (EmailWorker worker = new EmailWorker(
+                    cluster.clusterDepot(AuthModule.class.getName(), "*out_email"),
+                    new MailTransport.FileSink(outbox), 1, 0, 1,
+                    10, 20, 1_000, 1, 10,
+                    offsets, dir.resolve("dead-letter.jsonl"), instance).start()) {
+                Map<String,Object> evt = new HashMap<>();
+                evt.put("type", "RegisterRequested");
+                evt.put("email", email);
+                evt.put("name", "Test");
+                cluster.clusterDepot(AuthModule.class.getName(), "*registration_cmds").append(evt);
+                awaitLines(outbox, before + 1);
+            }
+        }
+    }
+
+    private static void awaitLines(Path file, long expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        long n = 0;
+        while (System.currentTimeMillis() < deadline) {
+            n = Files.exists(file) ? Files.readAllLines(file).size() : 0;
+            if (n >= expected) break;
+            Thread.sleep(20);
+        }
+        assertEquals(expected, n, "mails in " + file);
+    }
+}
@@ -0,0 +1,68 @@
+package com.monir.rama;
+
+import com.monir.rama.util.OtpSeal;
+import com.rpl.rama.Depot;
+import com.rpl.rama.QueryTopologyClient;
+import com.rpl.rama.test.InProcessCluster;
+import com.rpl.rama.test.LaunchConfig;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// With more than one task, the user row and OTP of a registration must sit on the userId's
+// partition, where EmailVerified and OtpAttempted look for them.
+class RegistrationPartitionTest {
+
+    private static final int USERS = 32;
+
+    @BeforeAll
+    static void inProcess() {
+        OtpSeal.allowPlaintext();
+    }
+
+    @Test
+    void registrationStateIsReadableByUserIdAcrossTasks() throws Exception {
+        try (InProcessCluster cluster = InProcessCluster.create()) {
+            cluster.launchModule(new AuthModule(), new LaunchConfig(8, 4));
+            String module = AuthModule.class.getName();
+            Depot reg = cluster.clusterDepot(module, "*registration_cmds");
+
+            List<UUID> ids = new ArrayList<>();
+            for (int i = 0; i < USERS; i++) {
+                Map<String,Object> evt = new HashMap<>();
+                evt.put("type", "RegisterRequested");
+                evt.put("email", "user" + i + "@example.com");
+                evt.put("name", "User " + i);
+                ids.add((UUID) reg.append(evt).get("registration"));
+            }
+
+            // a wrong code is only "invalid" when the OTP is found; elsewhere it reads "missing"
+            for (UUID id : ids) {
+                Map<String,Object> attempt = new HashMap<>();
+                attempt.put("type", "OtpAttempted");
+                attempt.put("userId", id);
+                attempt.put("otp", "not-a-code");
+                assertEquals("invalid", reg.append(attempt).get("registration"), "OTP of " + id);
+            }
+
+            for (UUID id : ids) {
+                Map<String,Object> verified = new HashMap<>();
+                verified.put("type", "EmailVerified");
+                verified.put("userId", id);
+                reg.append(verified);
+            }
+            QueryTopologyClient<Map> users = cluster.clusterQuery(module, "getUsersBatch");
+            Map<?,?> found = users.invoke(ids);
+            assertEquals(USERS, found.size());
+            for (Object u : found.values()) assertTrue(Boolean.TRUE.equals(((Map<?,?>) u).get("verified")));
+        }
+    }
+}
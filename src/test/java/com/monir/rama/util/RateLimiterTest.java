@@ -0,0 +1,107 @@
+package com.monir.rama.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+
+    // one set of eight slots, so every key competes for the same ways
+    private final RateLimiter limiter = new RateLimiter(8);
+    private final long t0 = System.currentTimeMillis();
+
+    @Test
+    void refillIsRatePerSecondUpToTheBurst() {
+        RateLimiter.Rule rule = new RateLimiter.Rule(10, 2);
+        assertEquals(0, limiter.tryAcquire(1, rule, t0));
+        assertEquals(0, limiter.tryAcquire(1, rule, t0));
+        // one token every 100 ms
+        assertEquals(100, limiter.tryAcquire(1, rule, t0));
+        assertEquals(50, limiter.tryAcquire(1, rule, t0 + 50));
+        assertEquals(0, limiter.tryAcquire(1, rule, t0 + 100));
+        assertEquals(100, limiter.tryAcquire(1, rule, t0 + 100));
+
+        // a long idle spell refills to the burst, not beyond
+        long later = t0 + TimeUnit.HOURS.toMillis(1);
+        assertEquals(0, limiter.tryAcquire(1, rule, later));
+        assertEquals(0, limiter.tryAcquire(1, rule, later));
+        assertTrue(limiter.tryAcquire(1, rule, later) > 0);
+    }
+
+    @Test
+    void fractionalRatesRoundTheWaitUp() {
+        RateLimiter.Rule rule = new RateLimiter.Rule(3, 1);
+        assertEquals(0, limiter.tryAcquire(1, rule, t0));
+        // 1000 / 3 = 333.3 ms
+        assertEquals(334, limiter.tryAcquire(1, rule, t0));
+        assertEquals(0, limiter.tryAcquire(1, rule, t0 + 334));
+    }
+
+    @Test
+    void aClockGoingBackwardsRefillsNothing() {
+        RateLimiter.Rule rule = new RateLimiter.Rule(10, 1);
+        assertEquals(0, limiter.tryAcquire(1, rule, t0 + 1_000));
+        assertTrue(limiter.tryAcquire(1, rule, t0 + 500) > 0);
+        assertEquals(100, limiter.tryAcquire(1, rule, t0 + 1_000));
+    }
+
+    // the token count fills its 22 bits without spilling into the time bits, also late in the
+    // 42-bit time range
+    @Test
+    void packingHoldsTheLargestBurstAndLargeTimes() {
+        RateLimiter.Rule rule = new RateLimiter.Rule(0.001, RateLimiter.MAX_BURST);
+        for (long at : new long[] { t0, t0 + TimeUnit.DAYS.toMillis(365L * 100) }) {
+            RateLimiter fresh = new RateLimiter(8);
+            for (int i = 0; i < RateLimiter.MAX_BURST; i++) assertEquals(0, fresh.tryAcquire(7, rule, at), "token " + i);
+            assertEquals(1_000_000, fresh.tryAcquire(7, rule, at));
+        }
+    }
+
+    @Test
+    void keysHaveTheirOwnBuckets() {
+        RateLimiter.Rule rule = new RateLimiter.Rule(1, 1);
+        assertEquals(0, limiter.tryAcquire(1, rule, t0));
+        assertTrue(limiter.tryAcquire(1, rule, t0) > 0);
+        assertEquals(0, limiter.tryAcquire(2, rule, t0));
+    }
+
+    @Test
+    void aFullSetEvictsItsLeastRecentlyRefilledKey() {
+        RateLimiter.Rule rule = new RateLimiter.Rule(0.001, 1);
+        // keys 1..8 fill the set, each drained at its own time
+        for (long k = 1; k <= 8; k++) assertEquals(0, limiter.tryAcquire(k, rule, t0 + k));
+        // key 9 takes the slot of key 1, the oldest
+        assertEquals(0, limiter.tryAcquire(9, rule, t0 + 9));
+        // key 2 is still tracked and still empty
+        assertTrue(limiter.tryAcquire(2, rule, t0 + 10) > 0);
+        // key 1 was forgotten, so it starts over with a full bucket (and evicts key 2, then 2 evicts 3)
+        assertEquals(0, limiter.tryAcquire(1, rule, t0 + 10));
+        assertEquals(0, limiter.tryAcquire(2, rule, t0 + 11));
+        // the survivors were not disturbed
+        for (long k = 4; k <= 8; k++) assertTrue(limiter.tryAcquire(k, rule, t0 + 12) > 0, "key " + k);
+    }
+
+    @Test
+    void keysAreNeverTheEmptySlotMarker() {
+        long seed = RateLimiter.seed("/api/login|ip");
+        assertTrue(RateLimiter.key(seed, "203.0.113.5") != 0);
+        assertEquals(RateLimiter.key(seed, "203.0.113.5"), RateLimiter.key(seed, "203.0.113.5"));
+        assertTrue(RateLimiter.key(seed, "203.0.113.5") != RateLimiter.key(RateLimiter.seed("/api/login|principal"), "203.0.113.5"));
+    }
+
+    @Test
+    void rulesParseRateAndBurst() {
+        RateLimiter.Rule r = RateLimiter.Rule.parse("20:40");
+        assertEquals(20.0, r.perSecond);
+        assertEquals(40, r.burst);
+        assertEquals(5, RateLimiter.Rule.parse("4.5").burst);
+        assertNull(RateLimiter.Rule.parse(" "));
+        assertThrows(IllegalArgumentException.class, () -> RateLimiter.Rule.parse("1:" + (RateLimiter.MAX_BURST + 1)));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter.Rule(0, 1));
+    }
+}
@@ -0,0 +1,95 @@
+package com.monir.rama.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionTokensTest {
+
+    private static final String K1 = "k1:" + key('1');
+    private static final String K2 = "k2:" + key('2');
+
+    private final UUID sid = Ids.newId();
+    private final UUID uid = Ids.newId();
+    private final long now = System.currentTimeMillis();
+
+    @Test
+    void issuedTokenVerifies() {
+        SessionTokens tokens = new SessionTokens(K1);
+        SessionTokens.Claims c = tokens.check(tokens.sign(sid, uid, now + 60_000), now);
+        assertNotNull(c);
+        assertEquals(sid, c.sessionId);
+        assertEquals(uid, c.userId);
+        assertEquals(now + 60_000, c.expiresAt);
+        assertEquals(Ids.createdAt(sid), c.issuedAt);
+    }
+
+    @Test
+    void tamperedTokensAreRejected() {
+        SessionTokens tokens = new SessionTokens(K1);
+        String token = tokens.sign(sid, uid, now + 60_000);
+        int macStart = token.lastIndexOf('.');
+
+        // another userId under the original mac
+        String payload = token.substring(token.indexOf('.', 3) + 1, macStart);
+        byte[] p = Base64.getUrlDecoder().decode(payload);
+        p[20] ^= 1;
+        String forged = token.replace(payload, Base64.getUrlEncoder().withoutPadding().encodeToString(p));
+        assertNull(tokens.check(forged, now));
+
+        // a flipped mac character, a truncated payload, garbage
+        char last = token.charAt(token.length() - 1);
+        assertNull(tokens.check(token.substring(0, token.length() - 1) + (last == 'A' ? 'B' : 'A'), now));
+        assertNull(tokens.check(token.substring(0, macStart - 4) + token.substring(macStart), now));
+        assertNull(tokens.check("v1.k1.not-base64!.x", now));
+        assertNull(tokens.check(null, now));
+    }
+
+    @Test
+    void unknownKidIsRejected() {
+        String token = new SessionTokens(K2).sign(sid, uid, now + 60_000);
+        assertNull(new SessionTokens(K1).check(token, now));
+        // same key bytes under another kid do not help either
+        assertNull(new SessionTokens("k3:" + key('2')).check(token, now));
+    }
+
+    @Test
+    void expiredTokenIsRejected() {
+        SessionTokens tokens = new SessionTokens(K1);
+        String token = tokens.sign(sid, uid, now + 1_000);
+        assertNotNull(tokens.check(token, now + 999));
+        assertNull(tokens.check(token, now + 1_000));
+    }
+
+    // put the successor first, keep the old key for verifying, then drop it
+    @Test
+    void rotationKeepsOldTokensUntilTheKeyIsDropped() {
+        String old = new SessionTokens(K1).sign(sid, uid, now + 60_000);
+
+        SessionTokens rotated = new SessionTokens(K2 + "," + K1);
+        assertNotNull(rotated.check(old, now));
+        String fresh = rotated.sign(sid, uid, now + 60_000);
+        assertTrue(fresh.startsWith("v1.k2."));
+
+        SessionTokens dropped = new SessionTokens(K2);
+        assertNull(dropped.check(old, now));
+        assertNotNull(dropped.check(fresh, now));
+    }
+
+    @Test
+    void malformedKeySpecIsRefused() {
+        assertThrows(IllegalArgumentException.class, () -> new SessionTokens("no-kid-here"));
+    }
+
+    private static String key(char fill) {
+        return Base64.getEncoder().encodeToString(String.valueOf(fill).repeat(32).getBytes(StandardCharsets.US_ASCII));
+    }
+}